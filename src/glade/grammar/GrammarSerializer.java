@@ -27,7 +27,9 @@ import glade.grammar.GrammarUtils.RepetitionNode;
 import glade.util.Utils;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -59,10 +61,10 @@ public class GrammarSerializer {
 
     public static void serialize(NodeData data, DataOutputStream dos) throws IOException {
         serialize(data.example, dos);
-        serialize(data.context.pre, dos);
-        serialize(data.context.post, dos);
-        serialize(data.context.extraPre, dos);
-        serialize(data.context.extraPost, dos);
+        serialize(data.context.getPre(), dos);
+        serialize(data.context.getPost(), dos);
+        serialize(data.context.getExtraPre(), dos);
+        serialize(data.context.getExtraPost(), dos);
     }
 
     public static NodeData deserializeNodeData(DataInputStream dis) throws IOException {
@@ -222,29 +224,68 @@ public class GrammarSerializer {
             }
         }
 
+        private static List<Integer> getChildren(NodeSerialization nodeSerialization) {
+            if (nodeSerialization instanceof AlternationNodeSerialization) {
+                AlternationNodeSerialization altNodeSerialization = (AlternationNodeSerialization) nodeSerialization;
+                return List.of(altNodeSerialization.first, altNodeSerialization.second);
+            } else if (nodeSerialization instanceof MultiAlternationNodeSerialization) {
+                return ((MultiAlternationNodeSerialization) nodeSerialization).children;
+            } else if (nodeSerialization instanceof RepetitionNodeSerialization) {
+                RepetitionNodeSerialization repNodeSerialization = (RepetitionNodeSerialization) nodeSerialization;
+                return List.of(repNodeSerialization.start, repNodeSerialization.rep, repNodeSerialization.end);
+            } else {
+                return List.of();
+            }
+        }
+
+        // builds the node from its serialization, once its children are built
+        private Node getNode(NodeSerialization nodeSerialization) {
+            if (nodeSerialization instanceof ConstantNodeSerialization) {
+                return new ConstantNode(nodeSerialization.getData());
+            } else if (nodeSerialization instanceof AlternationNodeSerialization) {
+                AlternationNodeSerialization altNodeSerialization = (AlternationNodeSerialization) nodeSerialization;
+                return new AlternationNode(altNodeSerialization.getData(), this.nodes.get(altNodeSerialization.first), this.nodes.get(altNodeSerialization.second));
+            } else if (nodeSerialization instanceof MultiAlternationNodeSerialization) {
+                MultiAlternationNodeSerialization maltNodeSerialization = (MultiAlternationNodeSerialization) nodeSerialization;
+                List<Node> children = new ArrayList<>();
+                for (int childIndex : maltNodeSerialization.children) {
+                    children.add(this.nodes.get(childIndex));
+                }
+                return new MultiAlternationNode(maltNodeSerialization.getData(), children);
+            } else if (nodeSerialization instanceof RepetitionNodeSerialization) {
+                RepetitionNodeSerialization repNodeSerialization = (RepetitionNodeSerialization) nodeSerialization;
+                return new RepetitionNode(repNodeSerialization.getData(), this.nodes.get(repNodeSerialization.start), this.nodes.get(repNodeSerialization.rep), this.nodes.get(repNodeSerialization.end));
+            } else if (nodeSerialization instanceof MultiConstantNodeSerialization) {
+                MultiConstantNodeSerialization mconstNodeSerialization = (MultiConstantNodeSerialization) nodeSerialization;
+                return new MultiConstantNode(mconstNodeSerialization.getData(), mconstNodeSerialization.characterOptions, mconstNodeSerialization.characterChecks);
+            } else {
+                throw new RuntimeException("Unrecognized node type: " + nodeSerialization.getClass().getName());
+            }
+        }
+
+        // Builds the node at the given index after its children, on an explicit stack so that
+        // deep grammars do not overflow the thread stack. Every node is built once, so that merges
+        // refer to the same nodes as the tree.
         private Node deserialize(int index) {
-            if (this.nodes.get(index) == null) {
-                NodeSerialization nodeSerialization = this.nodeSerializations.get(index);
-                if (nodeSerialization instanceof ConstantNodeSerialization) {
-                    this.nodes.set(index, new ConstantNode(nodeSerialization.getData()));
-                } else if (nodeSerialization instanceof AlternationNodeSerialization) {
-                    AlternationNodeSerialization altNodeSerialization = (AlternationNodeSerialization) nodeSerialization;
-                    this.nodes.set(index, new AlternationNode(altNodeSerialization.getData(), this.deserialize(altNodeSerialization.first), this.deserialize(altNodeSerialization.second)));
-                } else if (nodeSerialization instanceof MultiAlternationNodeSerialization) {
-                    MultiAlternationNodeSerialization maltNodeSerialization = (MultiAlternationNodeSerialization) nodeSerialization;
-                    List<Node> children = new ArrayList<>();
-                    for (int childIndex : maltNodeSerialization.children) {
-                        children.add(this.deserialize(childIndex));
+            Deque<Integer> stack = new ArrayDeque<>();
+            stack.push(index);
+            while (!stack.isEmpty()) {
+                int cur = stack.peek();
+                if (this.nodes.get(cur) != null) {
+                    stack.pop();
+                    continue;
+                }
+                NodeSerialization nodeSerialization = this.nodeSerializations.get(cur);
+                boolean isReady = true;
+                for (int childIndex : getChildren(nodeSerialization)) {
+                    if (this.nodes.get(childIndex) == null) {
+                        stack.push(childIndex);
+                        isReady = false;
                     }
-                    this.nodes.set(index, new MultiAlternationNode(maltNodeSerialization.getData(), children));
-                } else if (nodeSerialization instanceof RepetitionNodeSerialization) {
-                    RepetitionNodeSerialization repNodeSerialization = (RepetitionNodeSerialization) nodeSerialization;
-                    this.nodes.set(index, new RepetitionNode(repNodeSerialization.getData(), this.deserialize(repNodeSerialization.start), this.deserialize(repNodeSerialization.rep), this.deserialize(repNodeSerialization.end)));
-                } else if (nodeSerialization instanceof MultiConstantNodeSerialization) {
-                    MultiConstantNodeSerialization mconstNodeSerialization = (MultiConstantNodeSerialization) nodeSerialization;
-                    return new MultiConstantNode(mconstNodeSerialization.getData(), mconstNodeSerialization.characterOptions, mconstNodeSerialization.characterChecks);
-                } else {
-                    throw new RuntimeException("Unrecognized node type: " + nodeSerialization.getClass().getName());
+                }
+                if (isReady) {
+                    stack.pop();
+                    this.nodes.set(cur, this.getNode(nodeSerialization));
                 }
             }
             return this.nodes.get(index);
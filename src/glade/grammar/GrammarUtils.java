@@ -14,6 +14,7 @@
 
 package glade.grammar;
 
+import glade.util.OracleUtils.SegmentedQuery;
 import glade.util.Utils.MultivalueMap;
 
 import java.util.*;
@@ -29,30 +30,160 @@ public class GrammarUtils {
         }
     }
 
+    // The text around an example. Each context stores only the text it adds around its parent's,
+    // and the full strings are built when a query is sent. To bound the cost of building a query,
+    // every MAX_DEPTH levels a context stores the full strings instead (so contexts nested to depth
+    // d over a seed of length n take O(n * d / MAX_DEPTH) memory rather than O(n * d)).
     public static final class Context {
-        public final String pre;
-        public final String post;
-        public final String extraPre;
-        public final String extraPost;
+        private static final int MAX_DEPTH = 32;
+
+        private final Context parent;
+        // the text this context adds: pre and extraPre after the parent's, post and extraPost before
+        private final String pre;
+        private final String post;
+        private final String extraPre;
+        private final String extraPost;
+        private final int depth;
+        // numbers of non-empty strings along the chain of parents
+        private final int numPieces;
+        private final int numExtraPieces;
+        // lengths of the full strings
+        private final int preLength;
+        private final int postLength;
+        private final int extraPreLength;
+        private final int extraPostLength;
+        // the extra strings are the same as the plain ones at every level
+        private final boolean isExtraSame;
 
         public final static Context EMPTY = new Context();
 
         private Context() {
+            this.parent = null;
             this.pre = "";
             this.post = "";
             this.extraPre = "";
             this.extraPost = "";
+            this.depth = 0;
+            this.numPieces = 0;
+            this.numExtraPieces = 0;
+            this.preLength = 0;
+            this.postLength = 0;
+            this.extraPreLength = 0;
+            this.extraPostLength = 0;
+            this.isExtraSame = true;
         }
 
         public Context(Context parent, String pre, String post, String extraPre, String extraPost) {
-            this.pre = parent.pre + pre;
-            this.post = post + parent.post;
-            this.extraPre = parent.extraPre + extraPre;
-            this.extraPost = extraPost + parent.extraPost;
+            if (parent.depth >= MAX_DEPTH) {
+                pre = parent.getPre() + pre;
+                post = post + parent.getPost();
+                extraPre = parent.getExtraPre() + extraPre;
+                extraPost = extraPost + parent.getExtraPost();
+                parent = EMPTY;
+            }
+            this.parent = parent;
+            this.pre = pre;
+            this.post = post;
+            this.extraPre = extraPre;
+            this.extraPost = extraPost;
+            this.depth = parent.depth + 1;
+            this.numPieces = parent.numPieces + (pre.isEmpty() ? 0 : 1) + (post.isEmpty() ? 0 : 1);
+            this.numExtraPieces = parent.numExtraPieces + (extraPre.isEmpty() ? 0 : 1) + (extraPost.isEmpty() ? 0 : 1);
+            this.preLength = parent.preLength + pre.length();
+            this.postLength = post.length() + parent.postLength;
+            this.extraPreLength = parent.extraPreLength + extraPre.length();
+            this.extraPostLength = extraPost.length() + parent.extraPostLength;
+            this.isExtraSame = parent.isExtraSame && pre.equals(extraPre) && post.equals(extraPost);
+        }
+
+        // the non-empty pieces of pre + example + post (or of the extra strings), in order
+        private String[] getPieces(String example, boolean isExtra) {
+            String[] pieces = new String[(isExtra ? this.numExtraPieces : this.numPieces) + 1];
+            int numPre = 0;
+            for (Context context = this; context != null; context = context.parent) {
+                if (!(isExtra ? context.extraPre : context.pre).isEmpty()) {
+                    numPre++;
+                }
+            }
+            int first = numPre;
+            int last = numPre;
+            pieces[numPre] = example;
+            for (Context context = this; context != null; context = context.parent) {
+                String pre = isExtra ? context.extraPre : context.pre;
+                String post = isExtra ? context.extraPost : context.post;
+                if (!pre.isEmpty()) {
+                    pieces[--first] = pre;
+                }
+                if (!post.isEmpty()) {
+                    pieces[++last] = post;
+                }
+            }
+            return pieces;
+        }
+
+        // pre + example + post
+        public String getQuery(String example) {
+            return String.join("", this.getPieces(example, false));
+        }
+
+        // extraPre + example + extraPost
+        public String getExtraQuery(String example) {
+            return String.join("", this.getPieces(example, true));
+        }
+
+        // the same queries, without concatenating the pieces
+        public SegmentedQuery getSegmentedQuery(String example) {
+            return SegmentedQuery.of(this.getPieces(example, false));
+        }
+
+        public SegmentedQuery getSegmentedExtraQuery(String example) {
+            return SegmentedQuery.of(this.getPieces(example, true));
+        }
+
+        // the full pre (or extraPre), joined from the pieces of this context and its parents only
+        private String getPre(boolean isExtra) {
+            String[] pieces = new String[this.depth + 1];
+            int i = pieces.length;
+            for (Context context = this; context != null; context = context.parent) {
+                pieces[--i] = isExtra ? context.extraPre : context.pre;
+            }
+            return String.join("", pieces);
+        }
+
+        private String getPost(boolean isExtra) {
+            String[] pieces = new String[this.depth + 1];
+            int i = 0;
+            for (Context context = this; context != null; context = context.parent) {
+                pieces[i++] = isExtra ? context.extraPost : context.post;
+            }
+            return String.join("", pieces);
+        }
+
+        public String getPre() {
+            return this.getPre(false);
+        }
+
+        public String getPost() {
+            return this.getPost(false);
+        }
+
+        public String getExtraPre() {
+            return this.getPre(true);
+        }
+
+        public String getExtraPost() {
+            return this.getPost(true);
         }
 
         public boolean useExtra() {
-            return !this.pre.equals(this.extraPre) || !this.post.equals(this.extraPost);
+            if (this.isExtraSame) {
+                return false;
+            }
+            if (this.preLength != this.extraPreLength || this.postLength != this.extraPostLength) {
+                return true;
+            }
+            // same lengths, so pre + post and extraPre + extraPost line up
+            return !this.getQuery("").equals(this.getExtraQuery(""));
         }
     }
 
@@ -247,29 +378,23 @@ public class GrammarUtils {
         }
     }
 
-    private static void getAllNodesHelper(Node root, List<Node> nodes) {
-        nodes.add(root);
-        for (Node child : root.getChildren()) {
-            getAllNodesHelper(child, nodes);
-        }
-    }
-
+    // the nodes in pre-order, using an explicit stack so that deep grammars do not overflow the thread stack
     public static List<Node> getAllNodes(Node root) {
         List<Node> nodes = new ArrayList<>();
-        getAllNodesHelper(root, nodes);
-        return nodes;
-    }
-
-    private static void getDescendantsHelper(Node node, List<Node> descendants) {
-        descendants.add(node);
-        for (Node child : node.getChildren()) {
-            getDescendantsHelper(child, descendants);
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            nodes.add(node);
+            List<Node> children = node.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+            }
         }
+        return nodes;
     }
 
     public static Iterable<Node> getDescendants(Node node) {
-        List<Node> descendants = new ArrayList<>();
-        getDescendantsHelper(node, descendants);
-        return descendants;
+        return getAllNodes(node);
     }
 }
@@ -20,8 +20,10 @@ import glade.grammar.GrammarUtils.Node;
 import glade.grammar.GrammarUtils.RepetitionNode;
 import glade.util.Utils;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 
 public class ParseTreeUtils {
@@ -207,28 +209,20 @@ public class ParseTreeUtils {
         return getParseTreeRepConst(node);
     }
 
-    private static void getDescendantsHelper(ParseTreeNode node, List<ParseTreeNode> descendants) {
-        descendants.add(node);
-        for (ParseTreeNode child : node.getChildren()) {
-            getDescendantsHelper(child, descendants);
-        }
-    }
-
+    // pre-order, using an explicit stack so that deep parse trees do not overflow the thread stack
     public static List<ParseTreeNode> getDescendants(ParseTreeNode node) {
         List<ParseTreeNode> descendants = new ArrayList<>();
-        getDescendantsHelper(node, descendants);
-        return descendants;
-    }
-
-    private static void getDescendantsByTypeHelper(ParseTreeNode node, List<ParseTreeNode>[] descendants) {
-        if (node instanceof ParseTreeMultiConstantNode) {
-            descendants[0].add(node);
-        } else {
-            descendants[1].add(node);
-        }
-        for (ParseTreeNode child : node.getChildren()) {
-            getDescendantsByTypeHelper(child, descendants);
+        Deque<ParseTreeNode> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            ParseTreeNode cur = stack.pop();
+            descendants.add(cur);
+            List<ParseTreeNode> children = cur.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+            }
         }
+        return descendants;
     }
 
     public static List<ParseTreeNode>[] getDescendantsByType(ParseTreeNode node) {
@@ -237,7 +231,9 @@ public class ParseTreeUtils {
         for (int i = 0; i < 2; i++) {
             descendants[i] = new ArrayList<>();
         }
-        getDescendantsByTypeHelper(node, descendants);
+        for (ParseTreeNode descendant : getDescendants(node)) {
+            descendants[descendant instanceof ParseTreeMultiConstantNode ? 0 : 1].add(descendant);
+        }
         return descendants;
     }
 
@@ -23,47 +23,195 @@ import glade.grammar.GrammarUtils.Node;
 import glade.grammar.GrammarUtils.NodeData;
 import glade.grammar.GrammarUtils.NodeMerges;
 import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.grammar.synthesize.SynthesisBudget.BudgetedOracle;
 import glade.util.Log;
+import glade.util.OracleUtils;
+import glade.util.OracleUtils.CachedDiscriminativeOracle;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.OracleUtils.SingleFlightDiscriminativeOracle;
+import glade.util.ProfileUtils;
+import glade.util.ProfileUtils.OracleCheckEvent;
+import glade.util.ProfileUtils.Phase;
+import glade.util.ProfileUtils.ProfiledDiscriminativeOracle;
+import glade.util.ProfileUtils.Scope;
 import glade.util.Utils.Maybe;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Predicate;
 
 public class GrammarSynthesis {
-    private static Node getNode(String example, Predicate<String> oracle) {
-        return GrammarTransformer.getTransform(RegexSynthesis.getNode(example, oracle), oracle);
+    private static Node getNode(String example, int seed, Predicate<String> oracle, SynthesisParallelism parallelism) {
+        Node node = ProfileUtils.run(Phase.REGEX, seed, () -> RegexSynthesis.getNode(example, oracle, parallelism));
+        return ProfileUtils.run(Phase.GENERALIZE, seed, () -> GrammarTransformer.getTransform(node, oracle, parallelism));
+    }
+
+    // Synthesizes the root of a seed, and adds it to the checkpoint (if any).
+    private static Node getRoot(List<String> seeds, int seed, Predicate<String> oracle, SynthesisParallelism parallelism, SynthesisCheckpoint checkpoint) {
+        Node root = getNode(seeds.get(seed), seed, oracle, parallelism);
+        if (checkpoint != null) {
+            checkpoint.addRoot(seed, root);
+        }
+        return root;
+    }
+
+    // A seed whose synthesis failed is kept as a constant, so that the other seeds are not lost, and
+    // its failure is added to failures. It is not added to the checkpoint (if any), so a resumed run
+    // tries it again.
+    private static Node getFailedRoot(List<String> seeds, int seed, RuntimeException e, Map<Integer, RuntimeException> failures) {
+        Log.err(new RuntimeException("Error synthesizing seed " + seed + ", keeping it as a constant", e));
+        failures.put(seed, e);
+        return new ConstantNode(new NodeData(seeds.get(seed), Context.EMPTY));
+    }
+
+    // Synthesizes the seeds in order, or, in parallel mode, on a bounded pool while keeping the
+    // roots in seed order. Seeds the checkpoint (if any) already has are not synthesized again, and
+    // the others are added to it as they are done. A failure is thrown unless failures is given, in
+    // which case the failed seeds are kept as constants (see getFailedRoot).
+    private static List<Node> getNodes(Iterable<String> examples, Predicate<String> oracle, SynthesisParallelism parallelism, SynthesisCheckpoint checkpoint, Map<Integer, RuntimeException> failures) {
+        List<String> seeds = new ArrayList<>();
+        examples.forEach(seeds::add);
+        Node[] roots = new Node[seeds.size()];
+        if (checkpoint != null) {
+            for (int i = 0; i < seeds.size(); i++) {
+                Maybe<Node> root = checkpoint.getRoot(i, seeds.get(i));
+                if (root.hasT()) {
+                    roots[i] = root.getT();
+                }
+            }
+        }
+        if (parallelism.getSeedParallelism() == 1) {
+            for (int i = 0; i < seeds.size(); i++) {
+                if (roots[i] != null) {
+                    continue;
+                }
+                try {
+                    roots[i] = getRoot(seeds, i, oracle, parallelism, checkpoint);
+                } catch (RuntimeException e) {
+                    if (failures == null) {
+                        throw e;
+                    }
+                    roots[i] = getFailedRoot(seeds, i, e, failures);
+                }
+            }
+            return Arrays.asList(roots);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism.getSeedParallelism(), seeds.size())), runnable -> {
+            Thread thread = new Thread(runnable, "glade-seed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Node>> futures = new ArrayList<>();
+            for (int i = 0; i < seeds.size(); i++) {
+                int seed = i;
+                futures.add(roots[i] != null ? null : executor.submit(() -> getRoot(seeds, seed, oracle, parallelism, checkpoint)));
+            }
+            for (int i = 0; i < seeds.size(); i++) {
+                if (roots[i] != null) {
+                    continue;
+                }
+                try {
+                    roots[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    // errors are not isolated, as on the calling thread
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    if (failures == null) {
+                        throw new RuntimeException("Error synthesizing seed " + i, e.getCause());
+                    }
+                    roots[i] = getFailedRoot(seeds, i, (RuntimeException) e.getCause(), failures);
+                }
+            }
+            return Arrays.asList(roots);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for seeds!", e);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
     public static Grammar getGrammarSingle(String example, Predicate<String> oracle) {
         long time = System.currentTimeMillis();
-        if (!oracle.test(example)) {
+        if (!ProfileUtils.run(Phase.CHECK, 0, () -> oracle.test(example))) {
             throw new RuntimeException("Invalid example: " + example);
         }
         Log.info("PROCESSING EXAMPLE:\n" + example);
-        Node node = getNode(example, oracle);
+        Node node = getNode(example, 0, oracle, SynthesisParallelism.SEQUENTIAL);
         Log.info("SINGLE REGEX TIME: " + ((System.currentTimeMillis() - time) / 1000.0) + " seconds");
         time = System.currentTimeMillis();
-        Grammar grammar = new Grammar(node, MergesSynthesis.getMergesSingle(node, node, oracle));
+        NodeMerges merges = ProfileUtils.run(Phase.MERGE, 0, () -> MergesSynthesis.getMergesSingle(node, node, oracle));
+        Grammar grammar = new Grammar(node, merges);
         Log.info("SINGLE MERGE TIME: " + ((System.currentTimeMillis() - time) / 1000.0) + " seconds");
+        logOracle(oracle);
         return grammar;
     }
 
     public static Grammar learn(List<Node> roots, Predicate<String> oracle) {
+        return learn(roots, oracle, (SynthesisCheckpoint) null);
+    }
+
+    private static Grammar learn(List<Node> roots, Predicate<String> oracle, SynthesisCheckpoint checkpoint) {
         long time = System.currentTimeMillis();
-        Grammar grammar = new Grammar(new MultiAlternationNode(
-                new NodeData(null, Context.EMPTY), roots), MergesSynthesis.getMergesMultiple(roots, oracle));
+        Node root = new MultiAlternationNode(new NodeData(null, Context.EMPTY), roots);
+        NodeMerges merges = ProfileUtils.run(Phase.MERGE, ProfileUtils.ALL_SEEDS, () -> checkpoint == null ? MergesSynthesis.getMergesMultiple(roots, oracle) : MergesSynthesis.getMergesMultiple(roots, oracle, checkpoint));
+        Grammar grammar = new Grammar(root, merges);
         Log.info("MULTIPLE MERGE TIME: " + ((System.currentTimeMillis() - time) / 1000.0) + " seconds");
+        logOracle(oracle);
         return grammar;
     }
 
     public static Grammar learn(Iterable<String> examples, Predicate<String> oracle) {
-        List<Node> roots = new ArrayList<>();
-        for (String example : examples) {
-            roots.add(getNode(example, oracle));
-        }
-        return learn(roots, oracle);
+        return learn(examples, oracle, SynthesisParallelism.SEQUENTIAL);
+    }
+
+    // Learns the same grammar as learn(examples, oracle), using the given parallel modes. With
+    // constant group testing this holds only if the oracle meets its assumption (see
+    // SynthesisParallelism).
+    public static Grammar learn(Iterable<String> examples, Predicate<String> oracle, SynthesisParallelism parallelism) {
+        return learn(getNodes(examples, oracle, parallelism, null, null), oracle);
+    }
+
+    // Like learn(examples, oracle, parallelism), except that a seed whose synthesis fails (e.g.,
+    // because the oracle throws on one of its queries) is kept as a constant instead of failing the
+    // run. The failures are added to failures, by seed index.
+    public static Grammar learn(Iterable<String> examples, Predicate<String> oracle, SynthesisParallelism parallelism, Map<Integer, RuntimeException> failures) {
+        return learn(getNodes(examples, oracle, parallelism, null, failures), oracle);
+    }
+
+    // Checkpointed variant of learn, which also resumes from the checkpoint: seeds and pairs of
+    // roots it already has are not synthesized again (see SynthesisCheckpoint). Wrap the target
+    // with checkpoint.getOracle so that its answers are saved as well.
+    public static Grammar learn(Iterable<String> examples, Predicate<String> oracle, SynthesisCheckpoint checkpoint) {
+        return learn(examples, oracle, SynthesisParallelism.SEQUENTIAL, checkpoint);
+    }
+
+    public static Grammar learn(Iterable<String> examples, Predicate<String> oracle, SynthesisParallelism parallelism, SynthesisCheckpoint checkpoint) {
+        return learn(examples, oracle, parallelism, checkpoint, null);
+    }
+
+    // Checkpointed variant of learn(examples, oracle, parallelism, failures); failed seeds are not
+    // checkpointed, so a resumed run synthesizes them again.
+    public static Grammar learn(Iterable<String> examples, Predicate<String> oracle, SynthesisParallelism parallelism, SynthesisCheckpoint checkpoint, Map<Integer, RuntimeException> failures) {
+        Grammar grammar = learn(getNodes(examples, oracle, parallelism, checkpoint, failures), oracle, checkpoint);
+        Log.info("CHECKPOINT: " + checkpoint);
+        return grammar;
+    }
+
+    // Anytime variant of learn: stops searching once the budget is spent and returns the grammar
+    // learned so far (see SynthesisBudget).
+    public static Grammar learn(Iterable<String> examples, Predicate<String> oracle, SynthesisBudget budget) {
+        return learn(examples, budget.getOracle(oracle));
     }
 
     public static Grammar getRegularGrammarMultipleFromRoots(List<Node> roots, Predicate<String> oracle) {
@@ -74,24 +222,125 @@ public class GrammarSynthesis {
                         roots),
                 new NodeMerges());
         Log.info("MULTIPLE MERGE TIME: " + ((System.currentTimeMillis() - time) / 1000.0) + " seconds");
+        logOracle(oracle);
         return grammar;
     }
 
+    // The decorators are looked up through the whole stack, e.g., the single-flight oracle in
+    // Cached(SingleFlight(Profiled(target))).
+    private static void logOracle(Predicate<String> oracle) {
+        Maybe<BudgetedOracle> budgeted = OracleUtils.find(oracle, BudgetedOracle.class);
+        if (budgeted.hasT()) {
+            Log.info("SYNTHESIS BUDGET: " + SynthesisBudget.get(budgeted.getT()));
+        }
+        Maybe<CachedDiscriminativeOracle> cached = OracleUtils.find(oracle, CachedDiscriminativeOracle.class);
+        if (cached.hasT()) {
+            Log.info("ORACLE CACHE: " + cached.getT());
+        }
+        Maybe<SingleFlightDiscriminativeOracle> singleFlight = OracleUtils.find(oracle, SingleFlightDiscriminativeOracle.class);
+        if (singleFlight.hasT()) {
+            Log.info("ORACLE SINGLE FLIGHT: " + singleFlight.getT());
+        }
+        Maybe<ProfiledDiscriminativeOracle> profiled = OracleUtils.find(oracle, ProfiledDiscriminativeOracle.class);
+        if (profiled.hasT()) {
+            Log.info("ORACLE PROFILE:\n" + profiled.getT().getProfile().toJson());
+        }
+    }
+
     public static Grammar getRegularGrammarMultiple(Collection<String> examples, Predicate<String> oracle) {
-        List<Node> roots = new ArrayList<>();
+        return getRegularGrammarMultiple(examples, oracle, SynthesisParallelism.SEQUENTIAL);
+    }
+
+    public static Grammar getRegularGrammarMultiple(Collection<String> examples, Predicate<String> oracle, SynthesisParallelism parallelism) {
+        return getRegularGrammarMultipleFromRoots(getNodes(examples, oracle, parallelism, null, null), oracle);
+    }
+
+    // keeps the seeds whose synthesis fails as constants (see learn(examples, oracle, parallelism, failures))
+    public static Grammar getRegularGrammarMultiple(Collection<String> examples, Predicate<String> oracle, SynthesisParallelism parallelism, Map<Integer, RuntimeException> failures) {
+        return getRegularGrammarMultipleFromRoots(getNodes(examples, oracle, parallelism, null, failures), oracle);
+    }
+
+    public static List<String> getQueries(Context context, Iterable<String> examples) {
+        List<String> queries = new ArrayList<>();
+        boolean useExtra = context.useExtra();
         for (String example : examples) {
-            roots.add(getNode(example, oracle));
+            queries.add(context.getQuery(example));
+            if (useExtra) {
+                queries.add(context.getExtraQuery(example));
+            }
         }
-        return getRegularGrammarMultipleFromRoots(roots, oracle);
+        return queries;
     }
 
-    public static boolean getCheck(Predicate<String> oracle, Context context, Iterable<String> examples) {
+    // the same queries as getQueries, left in segments for oracles that can read them directly
+    public static List<SegmentedQuery> getSegmentedQueries(Context context, Iterable<String> examples) {
+        List<SegmentedQuery> queries = new ArrayList<>();
+        boolean useExtra = context.useExtra();
         for (String example : examples) {
-            if (!oracle.test(context.pre + example + context.post) || (context.useExtra() && !oracle.test(context.extraPre + example + context.extraPost))) {
-                return false;
+            queries.add(context.getSegmentedQuery(example));
+            if (useExtra) {
+                queries.add(context.getSegmentedExtraQuery(example));
+            }
+        }
+        return queries;
+    }
+
+    public static boolean getCheck(Predicate<String> oracle, Context context, Iterable<String> examples) {
+        return getCheck(oracle, getSegmentedQueries(context, examples));
+    }
+
+    static boolean getCheck(Predicate<String> oracle, List<SegmentedQuery> queries) {
+        OracleCheckEvent event = new OracleCheckEvent();
+        if (!event.isEnabled()) {
+            return OracleUtils.testAllPassSegments(oracle, queries);
+        }
+        event.begin();
+        boolean result = OracleUtils.testAllPassSegments(oracle, queries);
+        Scope scope = ProfileUtils.getScope();
+        event.phase = scope.phase.name();
+        event.seed = scope.seed;
+        event.queries = queries.size();
+        for (SegmentedQuery query : queries) {
+            event.queryLength += query.length();
+        }
+        event.accepted = result;
+        event.commit();
+        return result;
+    }
+
+    // Checks several candidates in one batch. Returns the candidates whose queries all pass.
+    static BitSet getChecks(Predicate<String> oracle, List<List<SegmentedQuery>> candidates) {
+        if (candidates.size() == 1) {
+            BitSet passes = new BitSet(1);
+            passes.set(0, getCheck(oracle, candidates.get(0)));
+            return passes;
+        }
+        OracleCheckEvent event = new OracleCheckEvent();
+        event.begin();
+        List<SegmentedQuery> queries = new ArrayList<>();
+        for (List<SegmentedQuery> candidate : candidates) {
+            queries.addAll(candidate);
+        }
+        BitSet results = OracleUtils.testAllSegments(oracle, queries);
+        BitSet passes = new BitSet(candidates.size());
+        int offset = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            int size = candidates.get(i).size();
+            passes.set(i, results.nextClearBit(offset) >= offset + size);
+            offset += size;
+        }
+        if (event.shouldCommit()) {
+            Scope scope = ProfileUtils.getScope();
+            event.phase = scope.phase.name();
+            event.seed = scope.seed;
+            event.queries = queries.size();
+            for (SegmentedQuery query : queries) {
+                event.queryLength += query.length();
             }
+            event.accepted = !passes.isEmpty();
+            event.commit();
         }
-        return true;
+        return passes;
     }
 
     public static Maybe<List<Node>> getMultiAlternationRepetitionConstantChildren(Node node, boolean isParentRep) {
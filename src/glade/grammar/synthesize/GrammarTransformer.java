@@ -14,6 +14,7 @@
 
 package glade.grammar.synthesize;
 
+import glade.grammar.GrammarUtils;
 import glade.grammar.GrammarUtils.AlternationNode;
 import glade.grammar.GrammarUtils.ConstantNode;
 import glade.grammar.GrammarUtils.Context;
@@ -21,19 +22,35 @@ import glade.grammar.GrammarUtils.MultiAlternationNode;
 import glade.grammar.GrammarUtils.MultiConstantNode;
 import glade.grammar.GrammarUtils.Node;
 import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.grammar.synthesize.SynthesisBudget.Step;
 import glade.util.CharacterUtils;
 import glade.util.Log;
 import glade.util.CharacterUtils.CharacterGeneralization;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.ProfileUtils;
+import glade.util.ProfileUtils.ConstantGeneralizationEvent;
+import glade.util.ProfileUtils.Scope;
 import glade.util.Utils.Maybe;
 import glade.util.Utils.MultivalueMap;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Predicate;
 
 public class GrammarTransformer {
     public static Node getTransform(Node node, Predicate<String> oracle) {
+        return getTransform(node, oracle, SynthesisParallelism.SEQUENTIAL);
+    }
+
+    public static Node getTransform(Node node, Predicate<String> oracle, SynthesisParallelism parallelism) {
         Node transformFlatten = getTransform(node, new FlattenTransformer());
-        return getTransform(transformFlatten, new ConstantTransformer(oracle, getMultiAlternationRepetitionConstantNodes(transformFlatten)));
+        ConstantTransformer transformer = new ConstantTransformer(oracle, parallelism, getMultiAlternationRepetitionConstantNodes(transformFlatten));
+        if (parallelism.getSubtreeParallelism() > 1) {
+            transformer.generalizeAll(transformFlatten);
+        }
+        return getTransform(transformFlatten, transformer);
     }
 
     private interface NodeTransformer {
@@ -48,38 +65,204 @@ public class GrammarTransformer {
         Node transformMultiAlternation(MultiAlternationNode node, List<Node> newChildren);
     }
 
-    private static Node getTransform(Node node, NodeTransformer transformer) {
+    private static Node getTransform(Node node, List<Node> newChildren, NodeTransformer transformer) {
         if (node instanceof ConstantNode) {
             return transformer.transformConstant((ConstantNode) node);
         } else if (node instanceof MultiConstantNode) {
             return transformer.transformMultiConstant((MultiConstantNode) node);
         } else if (node instanceof AlternationNode) {
-            AlternationNode altNode = (AlternationNode) node;
-            Node newFirst = getTransform(altNode.first, transformer);
-            Node newSecond = getTransform(altNode.second, transformer);
-            return transformer.transformAlternation(altNode, newFirst, newSecond);
+            return transformer.transformAlternation((AlternationNode) node, newChildren.get(0), newChildren.get(1));
         } else if (node instanceof MultiAlternationNode) {
-            List<Node> newChildren = new ArrayList<>();
-            for (Node child : node.getChildren()) {
-                newChildren.add(getTransform(child, transformer));
-            }
             return transformer.transformMultiAlternation((MultiAlternationNode) node, newChildren);
         } else if (node instanceof RepetitionNode) {
-            RepetitionNode repNode = (RepetitionNode) node;
-            Node newStart = getTransform(repNode.start, transformer);
-            Node newRep = getTransform(repNode.rep, transformer);
-            Node newEnd = getTransform(repNode.end, transformer);
-            return transformer.transformRepetition(repNode, newStart, newRep, newEnd);
+            return transformer.transformRepetition((RepetitionNode) node, newChildren.get(0), newChildren.get(1), newChildren.get(2));
         } else {
             throw new RuntimeException("Invalid node type: " + node.getClass().getName());
         }
     }
 
-    private static MultiConstantNode generalizeConstant(Node node, Predicate<String> oracle) {
+    private static class TransformFrame {
+        private final Node node;
+        private final List<Node> children;
+        private final List<Node> newChildren = new ArrayList<>();
+
+        private TransformFrame(Node node) {
+            this.node = node;
+            this.children = node.getChildren();
+        }
+    }
+
+    // Transforms the children left to right before their parent, as a recursive traversal would,
+    // but on an explicit stack so that deep grammars do not overflow the thread stack.
+    private static Node getTransform(Node root, NodeTransformer transformer) {
+        Deque<TransformFrame> stack = new ArrayDeque<>();
+        stack.push(new TransformFrame(root));
+        while (true) {
+            TransformFrame frame = stack.peek();
+            if (frame.newChildren.size() < frame.children.size()) {
+                stack.push(new TransformFrame(frame.children.get(frame.newChildren.size())));
+                continue;
+            }
+            stack.pop();
+            Node newNode = getTransform(frame.node, frame.newChildren, transformer);
+            if (stack.isEmpty()) {
+                return newNode;
+            }
+            stack.peek().newChildren.add(newNode);
+        }
+    }
+
+    // Group tests the positions at which one generalization triggers: checks replacing all of them
+    // at once, and if that fails, bisects them down to single positions. If the first half of a
+    // failing group passes, the second half is known to fail and is only bisected.
+    private static class GroupCheck {
+        private final String example;
+        private final Context context;
+        private final CharacterGeneralization generalization;
+        private final Predicate<String> oracle;
+        // the positions at which the generalization passes
+        private final BitSet passes;
+        private int numChecks = 0;
+
+        private GroupCheck(String example, Context context, CharacterGeneralization generalization, Predicate<String> oracle) {
+            this.example = example;
+            this.context = context;
+            this.generalization = generalization;
+            this.oracle = oracle;
+            this.passes = new BitSet(example.length());
+        }
+
+        // Returns true if the generalization passes at all of the positions.
+        private boolean check(List<Integer> positions, boolean isFailing) {
+            if (!isFailing) {
+                Collection<String> checks = new ArrayList<>();
+                for (char c : this.generalization.checks) {
+                    char[] check = this.example.toCharArray();
+                    boolean isChanged = false;
+                    for (int i : positions) {
+                        if (check[i] != c) {
+                            check[i] = c;
+                            isChanged = true;
+                        }
+                    }
+                    if (isChanged) {
+                        checks.add(new String(check));
+                    }
+                }
+                this.numChecks++;
+                if (GrammarSynthesis.getCheck(this.oracle, this.context, checks)) {
+                    for (int i : positions) {
+                        this.passes.set(i);
+                    }
+                    return true;
+                }
+            }
+            if (positions.size() > 1) {
+                int mid = positions.size() / 2;
+                boolean isFirstPassing = this.check(positions.subList(0, mid), false);
+                this.check(positions.subList(mid, positions.size()), isFirstPassing);
+            }
+            return false;
+        }
+    }
+
+    // Checks a window of (position, generalization) candidates in one batch, and records those that
+    // pass.
+    private static void flush(Predicate<String> oracle, List<int[]> candidates, List<List<SegmentedQuery>> checks, List<BitSet> passes) {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        BitSet results = GrammarSynthesis.getChecks(oracle, checks);
+        for (int k = results.nextSetBit(0); k >= 0; k = results.nextSetBit(k + 1)) {
+            passes.get(candidates.get(k)[1]).set(candidates.get(k)[0]);
+        }
+        candidates.clear();
+        checks.clear();
+    }
+
+    // Returns the positions at which each generalization passes, checking them one at a time, or a
+    // window of them per batch (they are independent, so the result is the same).
+    private static List<BitSet> getPasses(String example, Context context, List<CharacterGeneralization> generalizations, Predicate<String> oracle, int window, int[] numChecks) {
+        List<BitSet> passes = new ArrayList<>();
+        for (int j = 0; j < generalizations.size(); j++) {
+            passes.add(new BitSet(example.length()));
+        }
+        List<int[]> candidates = new ArrayList<>();
+        List<List<SegmentedQuery>> candidateChecks = new ArrayList<>();
+        for (int i = 0; i < example.length(); i++) {
+            char curC = example.charAt(i);
+            Context curContext = new Context(context, example.substring(0, i), example.substring(i + 1), example.substring(0, i), example.substring(i + 1));
+            for (int j = 0; j < generalizations.size(); j++) {
+                CharacterGeneralization generalization = generalizations.get(j);
+                if (generalization.triggers.contains(curC)) {
+                    Collection<String> checks = new ArrayList<>();
+                    for (char c : generalization.checks) {
+                        if (curC != c) {
+                            checks.add(String.valueOf(c));
+                        }
+                    }
+                    numChecks[0]++;
+                    candidates.add(new int[]{i, j});
+                    candidateChecks.add(GrammarSynthesis.getSegmentedQueries(curContext, checks));
+                    if (candidates.size() >= window) {
+                        flush(oracle, candidates, candidateChecks, passes);
+                    }
+                }
+            }
+        }
+        flush(oracle, candidates, candidateChecks, passes);
+        return passes;
+    }
+
+    // Same as getPasses, group testing up to groupSize positions at a time. Assumes that the
+    // oracle accepts a query with several characters replaced exactly when it accepts each of
+    // the replacements on its own, as it does for the usual character classes.
+    private static List<BitSet> getGroupPasses(String example, Context context, List<CharacterGeneralization> generalizations, Predicate<String> oracle, int groupSize, int[] numChecks) {
+        List<BitSet> passes = new ArrayList<>();
+        for (CharacterGeneralization generalization : generalizations) {
+            List<Integer> positions = new ArrayList<>();
+            for (int i = 0; i < example.length(); i++) {
+                if (generalization.triggers.contains(example.charAt(i))) {
+                    positions.add(i);
+                }
+            }
+            // the groups start from single positions and double while they pass, so that a
+            // generalization that fails at most positions costs about as much as checking each
+            GroupCheck groupCheck = new GroupCheck(example, context, generalization, oracle);
+            int size = 1;
+            for (int start = 0; start < positions.size(); ) {
+                int end = Math.min(start + size, positions.size());
+                size = groupCheck.check(positions.subList(start, end), false) ? Math.min(2 * size, groupSize) : 1;
+                start = end;
+            }
+            numChecks[0] += groupCheck.numChecks;
+            passes.add(groupCheck.passes);
+        }
+        return passes;
+    }
+
+    private static MultiConstantNode generalizeConstant(Node node, Predicate<String> oracle, SynthesisParallelism parallelism) {
         String example = node.getData().example;
         Context context = node.getData().context;
         if (example.length() != 0) {
-            Log.info("GENERALIZING CONST: " + example + " ## " + context.pre + " ## " + context.post);
+            Log.info(() -> "GENERALIZING CONST: " + example + " ## " + context.getPre() + " ## " + context.getPost());
+        }
+        ConstantGeneralizationEvent event = new ConstantGeneralizationEvent();
+        event.begin();
+        boolean isExplored = example.length() == 0 || SynthesisBudget.get(oracle).explore(Step.GENERALIZE);
+        int[] numChecks = new int[1];
+        List<CharacterGeneralization> generalizations = new ArrayList<>();
+        CharacterUtils.getGeneralizations().forEach(generalizations::add);
+        List<BitSet> passes;
+        if (!isExplored) {
+            passes = new ArrayList<>();
+            for (int j = 0; j < generalizations.size(); j++) {
+                passes.add(new BitSet());
+            }
+        } else if (parallelism.getConstantGroupSize() == 1) {
+            passes = getPasses(example, context, generalizations, oracle, parallelism.getSearchWindow(), numChecks);
+        } else {
+            passes = getGroupPasses(example, context, generalizations, oracle, parallelism.getConstantGroupSize(), numChecks);
         }
         List<List<Character>> characterOptions = new ArrayList<>();
         List<List<Character>> characterChecks = new ArrayList<>();
@@ -87,27 +270,19 @@ public class GrammarTransformer {
             List<Character> characterOption = new ArrayList<>();
             List<Character> characterCheck = new ArrayList<>();
             char curC = example.charAt(i);
-            Context curContext = new Context(context, example.substring(0, i), example.substring(i + 1), example.substring(0, i), example.substring(i + 1));
             characterOption.add(curC);
             characterCheck.add(curC);
-            for (CharacterGeneralization generalization : CharacterUtils.getGeneralizations()) {
-                if (generalization.triggers.contains(curC)) {
-                    Collection<String> checks = new ArrayList<>();
-                    for (char c : generalization.checks) {
+            for (int j = 0; j < generalizations.size(); j++) {
+                if (passes.get(j).get(i)) {
+                    CharacterGeneralization generalization = generalizations.get(j);
+                    for (char c : generalization.characters) {
                         if (curC != c) {
-                            checks.add(String.valueOf(c));
+                            characterOption.add(c);
                         }
                     }
-                    if (GrammarSynthesis.getCheck(oracle, curContext, checks)) {
-                        for (char c : generalization.characters) {
-                            if (curC != c) {
-                                characterOption.add(c);
-                            }
-                        }
-                        for (char c : generalization.checks) {
-                            if (curC != c) {
-                                characterCheck.add(c);
-                            }
+                    for (char c : generalization.checks) {
+                        if (curC != c) {
+                            characterCheck.add(c);
                         }
                     }
                 }
@@ -115,6 +290,12 @@ public class GrammarTransformer {
             characterOptions.add(characterOption);
             characterChecks.add(characterCheck);
         }
+        if (event.shouldCommit()) {
+            event.seed = ProfileUtils.getScope().seed;
+            event.length = example.length();
+            event.checks = numChecks[0];
+            event.commit();
+        }
         return new MultiConstantNode(node.getData(), characterOptions, characterChecks);
     }
 
@@ -140,32 +321,92 @@ public class GrammarTransformer {
         return false;
     }
 
-    private static Node generalizeMultiAlternationConstant(MultiAlternationNode node, MultivalueMap<MultiAlternationNode, ConstantNode> multiAlternationNodeConstantChildren, Predicate<String> oracle) {
+    private static Node generalizeMultiAlternationConstant(MultiAlternationNode node, MultivalueMap<MultiAlternationNode, ConstantNode> multiAlternationNodeConstantChildren, Predicate<String> oracle, SynthesisParallelism parallelism) {
         List<MultiConstantNode> curConsts = new ArrayList<>();
         Log.info("GENERALIZING MULTI ALT: " + node.getData().example);
-        for (Node child : multiAlternationNodeConstantChildren.get(node)) {
+        // the children in their order in the node, rather than the set's (identity hash) order, so that
+        // the generalized alternatives do not depend on which thread created the nodes
+        for (Node child : GrammarSynthesis.getMultiAlternationRepetitionConstantChildren(node, true).getT()) {
             if (!isContained(child.getData().example, curConsts)) {
-                curConsts.add(generalizeConstant(child, oracle));
+                curConsts.add(generalizeConstant(child, oracle, parallelism));
             }
         }
         return new MultiAlternationNode(node.getData(), new ArrayList<>(curConsts));
     }
 
+    private static class GeneralizeTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final ConstantTransformer transformer;
+        private final Node node;
+        private final Scope scope = ProfileUtils.getScope();
+
+        private GeneralizeTask(ConstantTransformer transformer, Node node) {
+            this.transformer = transformer;
+            this.node = node;
+        }
+
+        @Override
+        protected Node compute() {
+            return ProfileUtils.run(this.scope, () -> this.transformer.generalize(this.node));
+        }
+    }
+
     private static class ConstantTransformer implements NodeTransformer {
         private final Predicate<String> oracle;
+        private final SynthesisParallelism parallelism;
         private final MultivalueMap<MultiAlternationNode, ConstantNode> multiAlternationNodeConstantChildren;
         private final Collection<ConstantNode> ignoredConstants = new HashSet<>();
+        // the constants and multi-alternation constants generalized in advance, in parallel mode
+        private final Map<Node, Node> generalized = new HashMap<>();
 
-        private ConstantTransformer(Predicate<String> oracle, MultivalueMap<MultiAlternationNode, ConstantNode> multiAlternationNodeConstantChildren) {
+        private ConstantTransformer(Predicate<String> oracle, SynthesisParallelism parallelism, MultivalueMap<MultiAlternationNode, ConstantNode> multiAlternationNodeConstantChildren) {
             this.oracle = oracle;
+            this.parallelism = parallelism;
             this.multiAlternationNodeConstantChildren = multiAlternationNodeConstantChildren;
             for (Map.Entry<MultiAlternationNode, Set<ConstantNode>> multiAlternationNodeSetEntry : multiAlternationNodeConstantChildren.entrySet()) {
                 this.ignoredConstants.addAll(multiAlternationNodeSetEntry.getValue());
             }
         }
 
+        private Node generalize(Node node) {
+            if (node instanceof MultiAlternationNode) {
+                return generalizeMultiAlternationConstant((MultiAlternationNode) node, this.multiAlternationNodeConstantChildren, this.oracle, this.parallelism);
+            }
+            return generalizeConstant(node, this.oracle, this.parallelism);
+        }
+
+        // Generalizes the constants of the tree on a fork-join pool, as they are independent (each
+        // carries its own context); the transform then picks up the results in its usual order.
+        private void generalizeAll(Node root) {
+            List<Node> nodes = new ArrayList<>();
+            for (Node node : GrammarUtils.getAllNodes(root)) {
+                if ((node instanceof ConstantNode && !this.ignoredConstants.contains(node)) || this.multiAlternationNodeConstantChildren.containsKey(node)) {
+                    nodes.add(node);
+                }
+            }
+            List<GeneralizeTask> tasks = new ArrayList<>();
+            for (Node node : nodes) {
+                tasks.add(new GeneralizeTask(this, node));
+            }
+            ForkJoinPool pool = new ForkJoinPool(this.parallelism.getSubtreeParallelism());
+            try {
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            } finally {
+                pool.shutdown();
+            }
+            for (int i = 0; i < nodes.size(); i++) {
+                this.generalized.put(nodes.get(i), tasks.get(i).join());
+            }
+        }
+
+        private Node getGeneralized(Node node) {
+            Node generalized = this.generalized.get(node);
+            return generalized != null ? generalized : this.generalize(node);
+        }
+
         public Node transformConstant(ConstantNode node) {
-            return this.ignoredConstants.contains(node) ? node : generalizeConstant(node, this.oracle);
+            return this.ignoredConstants.contains(node) ? node : this.getGeneralized(node);
         }
 
         public Node transformMultiConstant(MultiConstantNode node) {
@@ -177,7 +418,7 @@ public class GrammarTransformer {
         }
 
         public Node transformMultiAlternation(MultiAlternationNode node, List<Node> newChildren) {
-            return this.multiAlternationNodeConstantChildren.containsKey(node) ? generalizeMultiAlternationConstant(node, this.multiAlternationNodeConstantChildren, this.oracle) : new MultiAlternationNode(node.getData(), newChildren);
+            return this.multiAlternationNodeConstantChildren.containsKey(node) ? this.getGeneralized(node) : new MultiAlternationNode(node.getData(), newChildren);
         }
 
         public Node transformRepetition(RepetitionNode node, Node newStart, Node newRep, Node newEnd) {
@@ -218,27 +459,29 @@ public class GrammarTransformer {
         }
     }
 
-    private static void getMultiAlternationRepetitionConstantNodesHelper(Node node, MultivalueMap<MultiAlternationNode, ConstantNode> result, boolean isParentRep) {
-        Maybe<List<Node>> constantChildren = GrammarSynthesis.getMultiAlternationRepetitionConstantChildren(node, isParentRep);
-        if (constantChildren.hasT()) {
-            for (Node child : constantChildren.getT()) {
-                result.add((MultiAlternationNode) node, (ConstantNode) child);
+    private static MultivalueMap<MultiAlternationNode, ConstantNode> getMultiAlternationRepetitionConstantNodes(Node root) {
+        MultivalueMap<MultiAlternationNode, ConstantNode> result = new MultivalueMap<>();
+        Deque<Node> nodes = new ArrayDeque<>();
+        Deque<Boolean> isParentReps = new ArrayDeque<>();
+        nodes.push(root);
+        isParentReps.push(false);
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            boolean isParentRep = isParentReps.pop();
+            Maybe<List<Node>> constantChildren = GrammarSynthesis.getMultiAlternationRepetitionConstantChildren(node, isParentRep);
+            if (constantChildren.hasT()) {
+                for (Node child : constantChildren.getT()) {
+                    result.add((MultiAlternationNode) node, (ConstantNode) child);
+                }
+                continue;
             }
-        } else if (node instanceof RepetitionNode) {
-            RepetitionNode repNode = (RepetitionNode) node;
-            getMultiAlternationRepetitionConstantNodesHelper(repNode.start, result, false);
-            getMultiAlternationRepetitionConstantNodesHelper(repNode.rep, result, true);
-            getMultiAlternationRepetitionConstantNodesHelper(repNode.end, result, false);
-        } else {
-            for (Node child : node.getChildren()) {
-                getMultiAlternationRepetitionConstantNodesHelper(child, result, false);
+            List<Node> children = node.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                nodes.push(children.get(i));
+                // the rep of a repetition is its second child
+                isParentReps.push(node instanceof RepetitionNode && i == 1);
             }
         }
-    }
-
-    private static MultivalueMap<MultiAlternationNode, ConstantNode> getMultiAlternationRepetitionConstantNodes(Node root) {
-        MultivalueMap<MultiAlternationNode, ConstantNode> result = new MultivalueMap<>();
-        getMultiAlternationRepetitionConstantNodesHelper(root, result, false);
         return result;
     }
 }
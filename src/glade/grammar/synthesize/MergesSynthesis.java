@@ -22,11 +22,16 @@ import glade.grammar.GrammarUtils.MultiConstantNode;
 import glade.grammar.GrammarUtils.Node;
 import glade.grammar.GrammarUtils.NodeMerges;
 import glade.grammar.GrammarUtils.RepetitionNode;
+import glade.grammar.synthesize.SynthesisBudget.Step;
 import glade.util.Log;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.ProfileUtils;
+import glade.util.ProfileUtils.MergeCheckEvent;
 import glade.util.Utils.MultivalueMap;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.function.Predicate;
 
@@ -46,6 +51,24 @@ public class MergesSynthesis {
         return merges;
     }
 
+    // Same as getMergesMultiple, skipping the pairs of roots the checkpoint has already processed
+    // and adding the others to it.
+    static NodeMerges getMergesMultiple(List<Node> roots, Predicate<String> oracle, SynthesisCheckpoint checkpoint) {
+        NodeMerges merges = checkpoint.getMerges();
+        for (int i = 0; i < roots.size(); i++) {
+            for (int j = 0; j < roots.size(); j++) {
+                if (checkpoint.isProcessed(i, j)) {
+                    continue;
+                }
+                NodeMerges pairMerges = getMergesSingle(roots.get(i), roots.get(j), oracle);
+                merges.addAll(pairMerges);
+                checkpoint.addMerges(i, j, pairMerges);
+            }
+        }
+        checkpoint.save();
+        return merges;
+    }
+
     public static NodeMerges getMergesSingle(Node firstRoot, Node secondRoot, Predicate<String> oracle) {
         NodeMerges merges = new NodeMerges();
         NodeMerges processedMerges = new NodeMerges();
@@ -78,12 +101,33 @@ public class MergesSynthesis {
         if (isMultiAlternationRepetitionConstant(firstRep, true) || isMultiAlternationRepetitionConstant(secondRep, true)) {
             return;
         }
+        if (!SynthesisBudget.get(oracle).explore(Step.MERGE)) {
+            return;
+        }
+        MergeCheckEvent event = new MergeCheckEvent();
+        event.begin();
+        boolean isMerged = getMergesHelper(firstRep, secondRep, firstExampleMap, secondExampleMap, oracle);
+        if (event.shouldCommit()) {
+            event.seed = ProfileUtils.getScope().seed;
+            event.firstLength = firstRep.getData().example.length();
+            event.secondLength = secondRep.getData().example.length();
+            event.merged = isMerged;
+            event.commit();
+        }
+        if (isMerged) {
+            Log.info(() -> "MERGE NODE FIRST:\n" + firstRep.getData().context.getPre() + " ## " + firstRep.getData().example + " ## " + firstRep.getData().context.getPost());
+            Log.info(() -> "MERGE NODE SECOND:\n" + secondRep.getData().context.getPre() + " ## " + secondRep.getData().example + " ## " + secondRep.getData().context.getPost());
+            merges.add(firstRep, secondRep);
+        }
+    }
+
+    private static boolean getMergesHelper(Node firstRep, Node secondRep, MultivalueMap<Node, String> firstExampleMap, MultivalueMap<Node, String> secondExampleMap, Predicate<String> oracle) {
         Collection<String> firstExamplesSimple = new ArrayList<>();
         Collection<String> secondExamplesSimple = new ArrayList<>();
         firstExamplesSimple.add(secondRep.getData().example + secondRep.getData().example);
         secondExamplesSimple.add(firstRep.getData().example + firstRep.getData().example);
-        if (!GrammarSynthesis.getCheck(oracle, firstRep.getData().context, firstExamplesSimple) || !GrammarSynthesis.getCheck(oracle, secondRep.getData().context, secondExamplesSimple)) {
-            return;
+        if (!getCheck(oracle, firstRep, firstExamplesSimple, secondRep, secondExamplesSimple)) {
+            return false;
         }
         Collection<String> firstExamples = new ArrayList<>();
         for (String example : secondExampleMap.get(secondRep)) {
@@ -93,18 +137,18 @@ public class MergesSynthesis {
         for (String example : firstExampleMap.get(firstRep)) {
             secondExamples.add(example + example);
         }
-        if ((isStructuredExample(firstRep) && isStructuredExample(secondRep))
-                || (GrammarSynthesis.getCheck(oracle, firstRep.getData().context, firstExamples) && GrammarSynthesis.getCheck(oracle, secondRep.getData().context, secondExamples))) {
-            Log.info("MERGE NODE FIRST:\n" + firstRep.getData().context.pre + " ## " + firstRep.getData().example + " ## " + firstRep.getData().context.post);
-            Log.info("MERGE NODE SECOND:\n" + secondRep.getData().context.pre + " ## " + secondRep.getData().example + " ## " + secondRep.getData().context.post);
-            merges.add(firstRep, secondRep);
-        }
+        return (isStructuredExample(firstRep) && isStructuredExample(secondRep))
+                || getCheck(oracle, firstRep, firstExamples, secondRep, secondExamples);
+    }
+
+    private static boolean getCheck(Predicate<String> oracle, Node firstRep, Iterable<String> firstExamples, Node secondRep, Iterable<String> secondExamples) {
+        List<SegmentedQuery> queries = GrammarSynthesis.getSegmentedQueries(firstRep.getData().context, firstExamples);
+        queries.addAll(GrammarSynthesis.getSegmentedQueries(secondRep.getData().context, secondExamples));
+        return GrammarSynthesis.getCheck(oracle, queries);
     }
 
+    // adds the examples of the node, given those of its children
     private static void getAllExamplesHelper(Node node, MultivalueMap<Node, String> examples) {
-        for (Node child : node.getChildren()) {
-            getAllExamplesHelper(child, examples);
-        }
         if (node instanceof RepetitionNode) {
             RepetitionNode repNode = (RepetitionNode) node;
             for (String example : examples.get(repNode.start)) {
@@ -149,7 +193,11 @@ public class MergesSynthesis {
 
     private static MultivalueMap<Node, String> getAllExamples(Node root) {
         MultivalueMap<Node, String> allExamples = new MultivalueMap<>();
-        getAllExamplesHelper(root, allExamples);
+        // children come after their parents in pre-order, so going backwards visits them first
+        List<Node> nodes = GrammarUtils.getAllNodes(root);
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            getAllExamplesHelper(nodes.get(i), allExamples);
+        }
         return allExamples;
     }
 
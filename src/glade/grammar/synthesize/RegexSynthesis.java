@@ -21,15 +21,39 @@ import glade.grammar.GrammarUtils.Node;
 import glade.grammar.GrammarUtils.NodeData;
 import glade.grammar.GrammarUtils.RepetitionNode;
 import glade.util.Log;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.ProfileUtils;
+import glade.grammar.synthesize.SynthesisBudget.Step;
+import glade.util.ProfileUtils.CandidateSearchEvent;
+import glade.util.ProfileUtils.Scope;
 import glade.util.Utils.Maybe;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public class RegexSynthesis {
     public static Node getNode(String example, Predicate<String> oracle) {
-        return getNode(new NodeData(example, Context.EMPTY), oracle, new NodeType[]{NodeType.REPETITION, NodeType.ALTERNATION}, true);
+        return getNode(example, oracle, SynthesisParallelism.SEQUENTIAL);
+    }
+
+    public static Node getNode(String example, Predicate<String> oracle, SynthesisParallelism parallelism) {
+        Subtree root = new Subtree(new NodeData(example, Context.EMPTY), new NodeType[]{NodeType.REPETITION, NodeType.ALTERNATION}, true, 0, 0);
+        if (parallelism.getSubtreeParallelism() == 1) {
+            return getNode(root, oracle, parallelism);
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism.getSubtreeParallelism());
+        try {
+            return pool.invoke(new SubtreeTask(() -> getNode(root, oracle, parallelism)));
+        } finally {
+            pool.shutdown();
+        }
     }
 
     private static Iterable<String> getAlternationChecks(String first, String second) {
@@ -74,90 +98,293 @@ public class RegexSynthesis {
         }
     }
 
-    private static Maybe<AlternationPartialNode> getAlternationPartialNode(NodeData cur, Predicate<String> oracle) {
-        for (int i = 1; i <= cur.example.length() - 1; i++) {
+    // Checks candidates in the order they are added, a window at a time, and stops at the first
+    // candidate whose checks all pass. With a window of one this is the plain sequential search;
+    // with a larger window, the candidates after the chosen one in its window are checked
+    // speculatively, but the choice is the same.
+    private static class CandidateSearch<T> {
+        private final Predicate<String> oracle;
+        private final SynthesisBudget budget;
+        private final int window;
+        private final List<T> candidates = new ArrayList<>();
+        private final List<List<SegmentedQuery>> checks = new ArrayList<>();
+        private T result = null;
+        private int numCandidates = 0;
+
+        private CandidateSearch(Predicate<String> oracle, SynthesisParallelism parallelism) {
+            this.oracle = oracle;
+            this.budget = SynthesisBudget.get(oracle);
+            this.window = parallelism.getSearchWindow();
+        }
+
+        private boolean isDone() {
+            return this.result != null || this.budget.isExhausted();
+        }
+
+        private void add(T candidate, Context context, Iterable<String> examples) {
+            this.candidates.add(candidate);
+            this.checks.add(GrammarSynthesis.getSegmentedQueries(context, examples));
+            if (this.candidates.size() >= this.window) {
+                this.flush();
+            }
+        }
+
+        private void flush() {
+            if (this.candidates.isEmpty()) {
+                return;
+            }
+            BitSet passes = GrammarSynthesis.getChecks(this.oracle, this.checks);
+            int first = passes.nextSetBit(0);
+            if (first >= 0) {
+                this.result = this.candidates.get(first);
+                this.numCandidates += first + 1;
+            } else {
+                this.numCandidates += this.candidates.size();
+            }
+            this.candidates.clear();
+            this.checks.clear();
+        }
+
+        private Maybe<T> getResult() {
+            this.flush();
+            return this.result == null ? new Maybe<>() : new Maybe<>(this.result);
+        }
+
+        // number of candidates the sequential search would have checked
+        private int getNumCandidates() {
+            return this.numCandidates;
+        }
+    }
+
+    // Synthesizes one subtree on the fork-join pool, in the profiling scope of the forking thread.
+    private static class SubtreeTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final Supplier<Node> subtree;
+        private final Scope scope = ProfileUtils.getScope();
+
+        private SubtreeTask(Supplier<Node> subtree) {
+            this.subtree = subtree;
+        }
+
+        @Override
+        protected Node compute() {
+            return ProfileUtils.run(this.scope, () -> this.subtree.get());
+        }
+    }
+
+    // A substring still to be synthesized, with the node types to try for it.
+    private static class Subtree {
+        private final NodeData data;
+        private final NodeType[] types;
+        private final boolean isWholeStringRepeatable;
+        private final int depth;
+        // number of forked tasks this subtree is nested in
+        private final int forks;
+
+        private Subtree(NodeData data, NodeType[] types, boolean isWholeStringRepeatable, int depth, int forks) {
+            this.data = data;
+            this.types = types;
+            this.isWholeStringRepeatable = isWholeStringRepeatable;
+            this.depth = depth;
+            this.forks = forks;
+        }
+
+        private Subtree getForked() {
+            return new Subtree(this.data, this.types, this.isWholeStringRepeatable, this.depth, this.forks + 1);
+        }
+    }
+
+    // A node whose split has been chosen, waiting for its subtrees. The subtrees are synthesized in
+    // order; in parallel mode all but the first are forked when the split is chosen and joined once
+    // the first is done, as the subtrees of a split are independent (each carries its own context).
+    private static class PartialNode {
+        private final NodeType type;
+        private final NodeData data;
+        private final Subtree[] subtrees;
+        private final Node[] nodes;
+        private final List<SubtreeTask> tasks = new ArrayList<>();
+        private int numNodes = 0;
+
+        // type is null for a constant
+        private PartialNode(NodeType type, NodeData data, Subtree... subtrees) {
+            this.type = type;
+            this.data = data;
+            this.subtrees = subtrees;
+            this.nodes = new Node[subtrees.length];
+        }
+
+        private void fork(Predicate<String> oracle, SynthesisParallelism parallelism) {
+            for (int i = 1; i < this.subtrees.length; i++) {
+                Subtree subtree = this.subtrees[i].getForked();
+                SubtreeTask task = new SubtreeTask(() -> RegexSynthesis.getNode(subtree, oracle, parallelism));
+                task.fork();
+                this.tasks.add(task);
+            }
+        }
+
+        private boolean hasNext() {
+            return this.numNodes < this.subtrees.length - this.tasks.size();
+        }
+
+        private Subtree next() {
+            return this.subtrees[this.numNodes];
+        }
+
+        private void add(Node node) {
+            this.nodes[this.numNodes++] = node;
+        }
+
+        private Node getNode() {
+            for (SubtreeTask task : this.tasks) {
+                this.add(task.join());
+            }
+            if (this.type == null) {
+                return new ConstantNode(this.data);
+            }
+            switch (this.type) {
+                case REPETITION:
+                    return new RepetitionNode(this.data, this.nodes[0], this.nodes[1], this.nodes[2]);
+                case ALTERNATION:
+                    return new AlternationNode(this.data, this.nodes[0], this.nodes[1]);
+                default:
+                    throw new RuntimeException("Invalid node type: " + this.type);
+            }
+        }
+    }
+
+    private static <T> Maybe<T> commit(CandidateSearchEvent event, String kind, NodeData cur, int depth, int candidates, Maybe<T> result) {
+        if (event.shouldCommit()) {
+            event.seed = ProfileUtils.getScope().seed;
+            event.kind = kind;
+            event.depth = depth;
+            event.length = cur.example.length();
+            event.candidates = candidates;
+            event.found = result.hasT();
+            event.commit();
+        }
+        return result;
+    }
+
+    private static Maybe<AlternationPartialNode> getAlternationPartialNode(NodeData cur, Predicate<String> oracle, SynthesisParallelism parallelism, int depth) {
+        CandidateSearchEvent event = new CandidateSearchEvent();
+        event.begin();
+        CandidateSearch<Integer> search = new CandidateSearch<>(oracle, parallelism);
+        for (int i = 1; i <= cur.example.length() - 1 && !search.isDone(); i++) {
             String first = cur.example.substring(0, i);
             String second = cur.example.substring(i);
-            if (GrammarSynthesis.getCheck(oracle, cur.context, getAlternationChecks(first, second))) {
-                NodeData firstData = new NodeData(first, new Context(cur.context, "", second, "", ""));
-                NodeData secondData = new NodeData(second, new Context(cur.context, first, "", "", ""));
-                Log.info("FOUND ALT: " + first + " ## " + second);
-                return new Maybe<>(new AlternationPartialNode(firstData, secondData));
-            }
+            search.add(i, cur.context, getAlternationChecks(first, second));
         }
-        return new Maybe<>();
+        Maybe<Integer> split = search.getResult();
+        if (!split.hasT()) {
+            return commit(event, "ALTERNATION", cur, depth, search.getNumCandidates(), new Maybe<>());
+        }
+        String first = cur.example.substring(0, split.getT());
+        String second = cur.example.substring(split.getT());
+        NodeData firstData = new NodeData(first, new Context(cur.context, "", second, "", ""));
+        NodeData secondData = new NodeData(second, new Context(cur.context, first, "", "", ""));
+        Log.info("FOUND ALT: " + first + " ## " + second);
+        return commit(event, "ALTERNATION", cur, depth, search.getNumCandidates(), new Maybe<>(new AlternationPartialNode(firstData, secondData)));
     }
 
-    private static Maybe<RepetitionPartialNode> getRepetitionPartialNode(NodeData cur, Predicate<String> oracle, boolean isWholeStringRepeatable) {
-        for (int init = 0; init <= cur.example.length() - 1; init++) {
-            for (int len = cur.example.length() - init; len >= 1; len--) {
+    private static Maybe<RepetitionPartialNode> getRepetitionPartialNode(NodeData cur, Predicate<String> oracle, SynthesisParallelism parallelism, boolean isWholeStringRepeatable, int depth) {
+        CandidateSearchEvent event = new CandidateSearchEvent();
+        event.begin();
+        CandidateSearch<int[]> search = new CandidateSearch<>(oracle, parallelism);
+        for (int init = 0; init <= cur.example.length() - 1 && !search.isDone(); init++) {
+            for (int len = cur.example.length() - init; len >= 1 && !search.isDone(); len--) {
                 if (len == cur.example.length() && !isWholeStringRepeatable) {
                     continue;
                 }
                 String start = cur.example.substring(0, init);
                 String rep = cur.example.substring(init, init + len);
                 String end = cur.example.substring(init + len);
-                if (GrammarSynthesis.getCheck(oracle, cur.context, getRepetitionChecks(start, rep, end))) {
-                    NodeData startData = new NodeData(start, new Context(cur.context, "", rep + end, "", end));
-                    NodeData repData = new NodeData(rep, new Context(cur.context, start, end, start, end));
-                    NodeData endData = new NodeData(end, new Context(cur.context, start + rep, "", start, ""));
-                    Log.info("FOUND REP: " + rep + " ## " + start + " ## " + end);
-                    return new Maybe<>(new RepetitionPartialNode(startData, repData, endData));
-                }
+                search.add(new int[]{init, len}, cur.context, getRepetitionChecks(start, rep, end));
             }
         }
-        return new Maybe<>();
-    }
-
-    private static Maybe<Node> getConstantNode(NodeData cur, Predicate<String> oracle) {
-        return new Maybe<>(new ConstantNode(cur));
-    }
-
-    private static Maybe<Node> getAlternationNode(NodeData cur, Predicate<String> oracle) {
-        Maybe<AlternationPartialNode> maybe = getAlternationPartialNode(cur, oracle);
-        if (!maybe.hasT()) {
-            return new Maybe<>();
+        Maybe<int[]> split = search.getResult();
+        if (!split.hasT()) {
+            return commit(event, "REPETITION", cur, depth, search.getNumCandidates(), new Maybe<>());
         }
-        Node first = getNode(maybe.getT().first, oracle, new NodeType[]{NodeType.REPETITION}, true);
-        Node second = getNode(maybe.getT().second, oracle, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, true);
-        return new Maybe<>(new AlternationNode(cur, first, second));
+        int init = split.getT()[0];
+        int len = split.getT()[1];
+        String start = cur.example.substring(0, init);
+        String rep = cur.example.substring(init, init + len);
+        String end = cur.example.substring(init + len);
+        NodeData startData = new NodeData(start, new Context(cur.context, "", rep + end, "", end));
+        NodeData repData = new NodeData(rep, new Context(cur.context, start, end, start, end));
+        NodeData endData = new NodeData(end, new Context(cur.context, start + rep, "", start, ""));
+        Log.info("FOUND REP: " + rep + " ## " + start + " ## " + end);
+        return commit(event, "REPETITION", cur, depth, search.getNumCandidates(), new Maybe<>(new RepetitionPartialNode(startData, repData, endData)));
     }
 
     final static NodeType[] emptyNodeTypes = {};
 
-    private static Maybe<Node> getRepetitionNode(NodeData cur, Predicate<String> oracle, boolean isWholeStringRepeatable) {
-        Maybe<RepetitionPartialNode> maybe = getRepetitionPartialNode(cur, oracle, isWholeStringRepeatable);
-        if (!maybe.hasT()) {
-            return new Maybe<>();
-        }
-
-        Node start = getNode(maybe.getT().start, oracle, emptyNodeTypes, true);
-        Node rep = getNode(maybe.getT().rep, oracle, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, false);
-        Node end = getNode(maybe.getT().end, oracle, new NodeType[]{NodeType.REPETITION}, true);
-        return new Maybe<>(new RepetitionNode(cur, start, rep, end));
-    }
-
     private enum NodeType {
         REPETITION, ALTERNATION
     }
 
-    private static Node getNode(NodeData cur, Predicate<String> oracle, NodeType[] types, boolean isWholeStringRepeatable) {
-        for (NodeType type : types) {
+    // Bounds how many forked tasks a subtree can be nested in. Joining a task may run it on the
+    // joining thread, so the stack grows with the nesting; past the bound, all subtrees are
+    // synthesized on the thread that found their split.
+    private static final int MAX_FORKS = 64;
+
+    // Chooses the split of a subtree; the returned node has no subtrees if it is a constant.
+    private static PartialNode getPartialNode(Subtree cur, Predicate<String> oracle, SynthesisParallelism parallelism) {
+        NodeData data = cur.data;
+        int depth = cur.depth;
+        PartialNode node = null;
+        if (cur.types.length != 0 && !SynthesisBudget.get(oracle).explore(Step.SEARCH)) {
+            return new PartialNode(null, data);
+        }
+        for (NodeType type : cur.types) {
             switch (type) {
                 case REPETITION:
-                    Maybe<Node> nodeRep = getRepetitionNode(cur, oracle, isWholeStringRepeatable);
-                    if (nodeRep.hasT()) {
-                        return nodeRep.getT();
+                    Maybe<RepetitionPartialNode> rep = getRepetitionPartialNode(data, oracle, parallelism, cur.isWholeStringRepeatable, depth);
+                    if (rep.hasT()) {
+                        node = new PartialNode(type, data,
+                                new Subtree(rep.getT().start, emptyNodeTypes, true, depth + 1, cur.forks),
+                                new Subtree(rep.getT().rep, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, false, depth + 1, cur.forks),
+                                new Subtree(rep.getT().end, new NodeType[]{NodeType.REPETITION}, true, depth + 1, cur.forks));
                     }
                     break;
                 case ALTERNATION:
-                    Maybe<Node> nodeAlt = getAlternationNode(cur, oracle);
-                    if (nodeAlt.hasT()) {
-                        return nodeAlt.getT();
+                    Maybe<AlternationPartialNode> alt = getAlternationPartialNode(data, oracle, parallelism, depth);
+                    if (alt.hasT()) {
+                        node = new PartialNode(type, data,
+                                new Subtree(alt.getT().first, new NodeType[]{NodeType.REPETITION}, true, depth + 1, cur.forks),
+                                new Subtree(alt.getT().second, new NodeType[]{NodeType.ALTERNATION, NodeType.REPETITION}, true, depth + 1, cur.forks));
                     }
                     break;
             }
+            if (node != null) {
+                if (parallelism.getSubtreeParallelism() > 1 && cur.forks < MAX_FORKS) {
+                    node.fork(oracle, parallelism);
+                }
+                return node;
+            }
+        }
+        return new PartialNode(null, data);
+    }
+
+    // Synthesizes a subtree depth first, keeping the nodes whose subtrees are not done yet on an
+    // explicit stack, so that the depth of the tree (which grows with the length of the seed) is
+    // not bounded by the thread stack.
+    private static Node getNode(Subtree root, Predicate<String> oracle, SynthesisParallelism parallelism) {
+        Deque<PartialNode> stack = new ArrayDeque<>();
+        PartialNode cur = getPartialNode(root, oracle, parallelism);
+        while (true) {
+            if (cur.hasNext()) {
+                stack.push(cur);
+                cur = getPartialNode(cur.next(), oracle, parallelism);
+                continue;
+            }
+            Node node = cur.getNode();
+            if (stack.isEmpty()) {
+                return node;
+            }
+            cur = stack.pop();
+            cur.add(node);
         }
-        return getConstantNode(cur, oracle).getT();
     }
 }
@@ -0,0 +1,185 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+import glade.util.OracleUtils;
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.OracleDecorator;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.Utils.Maybe;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// Bounds the oracle queries and/or wall-clock time of one synthesis run. Once the budget is spent,
+// the remaining candidate searches, constant generalizations, and merge checks are skipped, so
+// unexplored substrings stay constants and only merges that were already confirmed are kept.
+public class SynthesisBudget {
+    public enum Step {
+        SEARCH, GENERALIZE, MERGE
+    }
+
+    private static final SynthesisBudget UNBOUNDED = new SynthesisBudget(-1, -1);
+
+    private final long maxQueries;
+    private final long maxMillis;
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong[] explored = new AtomicLong[Step.values().length];
+    private final AtomicLong[] skipped = new AtomicLong[Step.values().length];
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile boolean isExhausted = false;
+
+    // -1 means no bound
+    public SynthesisBudget(long maxQueries, long maxMillis) {
+        this.maxQueries = maxQueries;
+        this.maxMillis = maxMillis;
+        for (int i = 0; i < this.explored.length; i++) {
+            this.explored[i] = new AtomicLong();
+            this.skipped[i] = new AtomicLong();
+        }
+    }
+
+    public boolean isExhausted() {
+        if (!this.isExhausted && ((this.maxQueries != -1 && this.queries.get() >= this.maxQueries) || System.currentTimeMillis() >= this.deadline)) {
+            this.isExhausted = true;
+        }
+        return this.isExhausted;
+    }
+
+    // The returned oracle rejects every query once the budget is spent. The wall clock starts here.
+    public Predicate<String> getOracle(Predicate<String> oracle) {
+        if (this.maxMillis != -1) {
+            this.deadline = System.currentTimeMillis() + this.maxMillis;
+        }
+        return new BudgetedOracle(oracle, this);
+    }
+
+    // the budget of the budgeted oracle anywhere in the stack of decorators, e.g., inside a
+    // ConcurrentDiscriminativeOracle used for batching
+    static SynthesisBudget get(Predicate<String> oracle) {
+        Maybe<BudgetedOracle> budgeted = OracleUtils.find(oracle, BudgetedOracle.class);
+        return budgeted.hasT() ? budgeted.getT().budget : UNBOUNDED;
+    }
+
+    // Returns true (and counts the step as explored) if there is budget left to take it.
+    boolean explore(Step step) {
+        if (this.isExhausted()) {
+            this.skipped[step.ordinal()].incrementAndGet();
+            return false;
+        }
+        this.explored[step.ordinal()].incrementAndGet();
+        return true;
+    }
+
+    public long getQueries() {
+        return this.queries.get();
+    }
+
+    public long getExplored(Step step) {
+        return this.explored[step.ordinal()].get();
+    }
+
+    public long getSkipped(Step step) {
+        return this.skipped[step.ordinal()].get();
+    }
+
+    // fraction of the steps of the given kind that were explored (rather than skipped)
+    public double getCoverage(Step step) {
+        long explored = this.getExplored(step);
+        long total = explored + this.getSkipped(step);
+        return total == 0 ? 1.0 : (double) explored / total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append("queries: ").append(this.getQueries()).append(", exhausted: ").append(this.isExhausted());
+        for (Step step : Step.values()) {
+            sb.append(", ").append(step.name().toLowerCase()).append(": ").append(this.getExplored(step)).append("/").append(this.getExplored(step) + this.getSkipped(step));
+        }
+        return sb.toString();
+    }
+
+    static class BudgetedOracle implements DiscriminativeOracle, OracleDecorator {
+        private final Predicate<String> oracle;
+        private final SynthesisBudget budget;
+
+        private BudgetedOracle(Predicate<String> oracle, SynthesisBudget budget) {
+            this.oracle = oracle;
+            this.budget = budget;
+        }
+
+        @Override
+        public Predicate<String> getOracle() {
+            return this.oracle;
+        }
+
+        @Override
+        public boolean test(String query) {
+            if (this.budget.isExhausted()) {
+                return false;
+            }
+            this.budget.queries.incrementAndGet();
+            return this.oracle.test(query);
+        }
+
+        // a batch that is started is allowed to finish, so the query budget may be overshot by one batch
+        @Override
+        public BitSet testAll(List<String> queries) {
+            if (this.budget.isExhausted()) {
+                return new BitSet(queries.size());
+            }
+            this.budget.queries.addAndGet(queries.size());
+            return OracleUtils.testAll(this.oracle, queries);
+        }
+
+        @Override
+        public boolean testAllPass(List<String> queries) {
+            if (this.budget.isExhausted()) {
+                return false;
+            }
+            this.budget.queries.addAndGet(queries.size());
+            return OracleUtils.testAllPass(this.oracle, queries);
+        }
+
+        @Override
+        public boolean test(SegmentedQuery query) {
+            if (this.budget.isExhausted()) {
+                return false;
+            }
+            this.budget.queries.incrementAndGet();
+            return OracleUtils.test(this.oracle, query);
+        }
+
+        @Override
+        public BitSet testAllSegments(List<SegmentedQuery> queries) {
+            if (this.budget.isExhausted()) {
+                return new BitSet(queries.size());
+            }
+            this.budget.queries.addAndGet(queries.size());
+            return OracleUtils.testAllSegments(this.oracle, queries);
+        }
+
+        @Override
+        public boolean testAllPassSegments(List<SegmentedQuery> queries) {
+            if (this.budget.isExhausted()) {
+                return false;
+            }
+            this.budget.queries.addAndGet(queries.size());
+            return OracleUtils.testAllPassSegments(this.oracle, queries);
+        }
+    }
+}
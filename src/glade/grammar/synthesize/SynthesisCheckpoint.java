@@ -0,0 +1,197 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+import glade.grammar.GrammarSerializer;
+import glade.grammar.GrammarUtils.Context;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.MultiAlternationNode;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.GrammarUtils.NodeData;
+import glade.grammar.GrammarUtils.NodeMerges;
+import glade.util.OracleUtils.OracleStore;
+import glade.util.OracleUtils.StoredDiscriminativeOracle;
+import glade.util.Utils.Maybe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+// The state of a learning run, kept in a directory so that a run that is killed can be resumed:
+// the roots of the seeds synthesized so far, the pairs of roots whose merges have been checked and
+// the merges found, and (in an OracleStore) the oracle answers. The roots are saved as soon as each
+// is done, and the merges at most every intervalMillis; each save replaces the checkpoint file
+// atomically. A resumed run redoes the seed or merge pairs that were in progress, but their oracle
+// queries are answered from the store, so with a deterministic oracle it learns the same grammar.
+public class SynthesisCheckpoint implements Closeable {
+    private static final int MAGIC = 0x474c4331; // GLC1
+    private static final String CHECKPOINT_FILENAME = "checkpoint";
+    private static final String STORE_FILENAME = "oracle.store";
+
+    private final File file;
+    private final OracleStore store;
+    private final long intervalMillis;
+    private final Map<Integer, Node> roots = new TreeMap<>();
+    private final Set<List<Integer>> processed = new HashSet<>();
+    private final NodeMerges merges = new NodeMerges();
+    private long lastSave = System.currentTimeMillis();
+
+    // fingerprint: identifies the target program of the oracle (see OracleStore)
+    public SynthesisCheckpoint(File directory, String fingerprint, long intervalMillis) throws IOException {
+        Files.createDirectories(directory.toPath());
+        this.file = new File(directory, CHECKPOINT_FILENAME);
+        this.intervalMillis = intervalMillis;
+        if (this.file.exists()) {
+            this.load();
+        }
+        this.store = new OracleStore(new File(directory, STORE_FILENAME), fingerprint);
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file.toPath())))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Invalid checkpoint file: " + this.file);
+            }
+            int numRoots = dis.readInt();
+            List<Integer> seeds = new ArrayList<>();
+            for (int i = 0; i < numRoots; i++) {
+                seeds.add(dis.readInt());
+            }
+            Grammar grammar = GrammarSerializer.deserializeNodeWithMerges(dis);
+            for (int i = 0; i < numRoots; i++) {
+                this.roots.put(seeds.get(i), grammar.node.getChildren().get(i));
+            }
+            this.merges.addAll(grammar.merges);
+            int numProcessed = dis.readInt();
+            for (int i = 0; i < numProcessed; i++) {
+                int first = dis.readInt();
+                int second = dis.readInt();
+                // pairs with a root that is not checkpointed are checked again with the new root
+                if (this.roots.containsKey(first) && this.roots.containsKey(second)) {
+                    this.processed.add(List.of(first, second));
+                }
+            }
+        }
+    }
+
+    // Records the oracle answers in the checkpoint's store, and answers the queries it already has.
+    public Predicate<String> getOracle(Predicate<String> oracle) {
+        return new StoredDiscriminativeOracle(oracle, this.store);
+    }
+
+    public OracleStore getStore() {
+        return this.store;
+    }
+
+    public synchronized int getNumRoots() {
+        return this.roots.size();
+    }
+
+    public synchronized int getNumProcessed() {
+        return this.processed.size();
+    }
+
+    synchronized Maybe<Node> getRoot(int seed, String example) {
+        Node root = this.roots.get(seed);
+        if (root == null) {
+            return new Maybe<>();
+        }
+        if (!example.equals(root.getData().example)) {
+            throw new RuntimeException("Checkpoint does not match seed " + seed + ": " + this.file);
+        }
+        return new Maybe<>(root);
+    }
+
+    synchronized void addRoot(int seed, Node root) {
+        this.roots.put(seed, root);
+        this.save();
+    }
+
+    synchronized boolean isProcessed(int first, int second) {
+        return this.processed.contains(List.of(first, second)) || this.processed.contains(List.of(second, first));
+    }
+
+    // the merges found in the pairs processed so far
+    synchronized NodeMerges getMerges() {
+        NodeMerges merges = new NodeMerges();
+        merges.addAll(this.merges);
+        return merges;
+    }
+
+    // Pairs with a root that is not checkpointed (a seed that failed) are not recorded, as the
+    // resumed run synthesizes that seed again and must check its merges.
+    synchronized void addMerges(int first, int second, NodeMerges merges) {
+        if (!this.roots.containsKey(first) || !this.roots.containsKey(second)) {
+            return;
+        }
+        this.processed.add(List.of(first, second));
+        this.merges.addAll(merges);
+        if (System.currentTimeMillis() - this.lastSave >= this.intervalMillis) {
+            this.save();
+        }
+    }
+
+    synchronized void save() {
+        File tmp = new File(this.file.getPath() + ".tmp");
+        try {
+            this.store.flush();
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+                dos.writeInt(MAGIC);
+                dos.writeInt(this.roots.size());
+                for (int seed : this.roots.keySet()) {
+                    dos.writeInt(seed);
+                }
+                Node root = new MultiAlternationNode(new NodeData(null, Context.EMPTY), new ArrayList<>(this.roots.values()));
+                GrammarSerializer.serialize(new Grammar(root, this.merges), dos);
+                dos.writeInt(this.processed.size());
+                for (List<Integer> pair : this.processed) {
+                    dos.writeInt(pair.get(0));
+                    dos.writeInt(pair.get(1));
+                }
+                dos.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Error writing checkpoint: " + this.file, e);
+        }
+        this.lastSave = System.currentTimeMillis();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.store.close();
+    }
+
+    @Override
+    public String toString() {
+        return "roots: " + this.getNumRoots() + ", processed: " + this.getNumProcessed() + ", oracle store: " + this.store;
+    }
+}
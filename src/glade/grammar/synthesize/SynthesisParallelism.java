@@ -0,0 +1,100 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.grammar.synthesize;
+
+// Settings for the parallel synthesis modes. The search window, subtree and seed modes commit to
+// the same choices as sequential synthesis, so with them the learned grammar does not depend on
+// these settings as long as the oracle is deterministic (under a SynthesisBudget, which steps are
+// explored before it runs out may vary). Windows of candidates reach the oracle as batches, so wrap
+// it in a ConcurrentDiscriminativeOracle to actually run them concurrently; subtrees call the
+// oracle from several threads, so it must be thread-safe.
+// Group testing constants (constantGroupSize > 1) is not a parallel mode but a way of saving
+// queries, and it does not carry the same guarantee: it commits to the same choices only if the
+// oracle also meets the assumption described at constantGroupSize. Otherwise, some characters of
+// a constant may not be generalized, e.g., when the oracle accepts each replacement on its own but
+// not two of them together.
+public class SynthesisParallelism {
+    public static final SynthesisParallelism SEQUENTIAL = new SynthesisParallelism(1, 1, 1, 1);
+
+    private final int searchWindow;
+    private final int subtreeParallelism;
+    private final int seedParallelism;
+    private final int constantGroupSize;
+
+    // searchWindow: number of repetition or alternation candidates checked in one batch (the
+    // checks of a candidate are two to sixteen queries, so a window of about half the oracle
+    // concurrency keeps the oracle busy); also the number of character generalizations of a
+    // constant checked in one batch (one to six queries each)
+    // subtreeParallelism: maximum number of subtrees of a seed synthesized at once, on a fork-join
+    // pool, and of constants of a seed generalized at once (1 synthesizes and generalizes them one
+    // after another on the calling thread)
+    // seedParallelism: maximum number of seeds synthesized at once (each with its own subtree pool)
+    // constantGroupSize: maximum number of positions of a constant whose character generalization
+    // is checked in one query, by replacing them all at once and bisecting if that fails (1 checks
+    // each position on its own); this saves queries on long constants such as fixed-width fields,
+    // and assumes the oracle accepts a query with several characters replaced exactly when it
+    // accepts each of the replacements on its own
+    public SynthesisParallelism(int searchWindow, int subtreeParallelism, int seedParallelism, int constantGroupSize) {
+        if (searchWindow < 1) {
+            throw new IllegalArgumentException("Invalid search window: " + searchWindow);
+        }
+        if (subtreeParallelism < 1) {
+            throw new IllegalArgumentException("Invalid subtree parallelism: " + subtreeParallelism);
+        }
+        if (seedParallelism < 1) {
+            throw new IllegalArgumentException("Invalid seed parallelism: " + seedParallelism);
+        }
+        if (constantGroupSize < 1) {
+            throw new IllegalArgumentException("Invalid constant group size: " + constantGroupSize);
+        }
+        this.searchWindow = searchWindow;
+        this.subtreeParallelism = subtreeParallelism;
+        this.seedParallelism = seedParallelism;
+        this.constantGroupSize = constantGroupSize;
+    }
+
+    public SynthesisParallelism(int searchWindow, int subtreeParallelism, int seedParallelism) {
+        this(searchWindow, subtreeParallelism, seedParallelism, 1);
+    }
+
+    public SynthesisParallelism(int searchWindow, int subtreeParallelism) {
+        this(searchWindow, subtreeParallelism, 1);
+    }
+
+    public SynthesisParallelism(int searchWindow) {
+        this(searchWindow, 1);
+    }
+
+    public int getSearchWindow() {
+        return this.searchWindow;
+    }
+
+    public int getSubtreeParallelism() {
+        return this.subtreeParallelism;
+    }
+
+    public int getSeedParallelism() {
+        return this.seedParallelism;
+    }
+
+    public int getConstantGroupSize() {
+        return this.constantGroupSize;
+    }
+
+    @Override
+    public String toString() {
+        return "searchWindow: " + this.searchWindow + ", subtreeParallelism: " + this.subtreeParallelism + ", seedParallelism: " + this.seedParallelism + ", constantGroupSize: " + this.constantGroupSize;
+    }
+}
@@ -14,6 +14,8 @@
 
 package glade.util;
 
+import java.util.function.Supplier;
+
 @Deprecated public class Log {
 //    private static String logName = null;
     private static boolean verbose = false;
@@ -41,6 +43,13 @@ package glade.util;
 //        }
     }
 
+    // for messages that are costly to build: the supplier is only called when verbose
+    public static void info(Supplier<String> s) {
+        if (verbose) {
+            System.out.println(s.get());
+        }
+    }
+
     public static void err(Exception e) {
         if (verbose) {
             e.printStackTrace();
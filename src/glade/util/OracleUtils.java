@@ -14,8 +14,56 @@
 
 package glade.util;
 
+import glade.util.ProfileUtils.Scope;
+import glade.util.Utils.Maybe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 public class OracleUtils {
 
@@ -23,7 +71,404 @@ public class OracleUtils {
 
     }
 
+    public enum Verdict {
+        ACCEPT, REJECT, TIMEOUT
+    }
+
+    public interface ConcurrentOracle extends Oracle {
+        int getConcurrency();
+    }
+
+    // A query made of segments (e.g., a context's pieces around an example) that are only
+    // concatenated if the oracle needs a String. The segments array must not be modified.
+    public static final class SegmentedQuery implements CharSequence {
+        private final String[] segments;
+        // offsets[i] is the index of the first character of segments[i]
+        private final int[] offsets;
+        private final int length;
+
+        private SegmentedQuery(String[] segments) {
+            this.segments = segments;
+            this.offsets = new int[segments.length];
+            int length = 0;
+            for (int i = 0; i < segments.length; i++) {
+                this.offsets[i] = length;
+                length += segments[i].length();
+            }
+            this.length = length;
+        }
+
+        public static SegmentedQuery of(String... segments) {
+            return new SegmentedQuery(segments);
+        }
+
+        public List<String> getSegments() {
+            return Collections.unmodifiableList(Arrays.asList(this.segments));
+        }
+
+        @Override
+        public int length() {
+            return this.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= this.length) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + this.length);
+            }
+            int segment = Arrays.binarySearch(this.offsets, index);
+            if (segment < 0) {
+                segment = -segment - 2;
+            }
+            // skip empty segments that start at the same offset
+            while (index - this.offsets[segment] >= this.segments[segment].length()) {
+                segment++;
+            }
+            return this.segments[segment].charAt(index - this.offsets[segment]);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return this.toString().substring(start, end);
+        }
+
+        // The UTF-8 encoding, one buffer per segment, for gathering writes. A surrogate pair split
+        // across segments cannot be encoded piecewise, so then the query is encoded as a whole.
+        public ByteBuffer[] encode() {
+            ByteBuffer[] buffers = new ByteBuffer[this.segments.length];
+            for (int i = 0; i < this.segments.length; i++) {
+                String segment = this.segments[i];
+                if (!segment.isEmpty() && (Character.isHighSurrogate(segment.charAt(segment.length() - 1)) || Character.isLowSurrogate(segment.charAt(0)))) {
+                    return new ByteBuffer[]{ByteBuffer.wrap(this.toString().getBytes(StandardCharsets.UTF_8))};
+                }
+                buffers[i] = ByteBuffer.wrap(segment.getBytes(StandardCharsets.UTF_8));
+            }
+            return buffers;
+        }
+
+        @Override
+        public String toString() {
+            return String.join("", this.segments);
+        }
+    }
+
+    public static List<String> toStrings(List<SegmentedQuery> queries) {
+        List<String> strings = new ArrayList<>(queries.size());
+        for (SegmentedQuery query : queries) {
+            strings.add(query.toString());
+        }
+        return strings;
+    }
+
     public interface DiscriminativeOracle extends Predicate<String> {
+        // Oracles that can read (or write out) the segments directly override the segmented
+        // methods; by default the segments are concatenated.
+        default boolean test(SegmentedQuery query) {
+            return this.test(query.toString());
+        }
+
+        default BitSet testAllSegments(List<SegmentedQuery> queries) {
+            return this.testAll(toStrings(queries));
+        }
+
+        default boolean testAllPassSegments(List<SegmentedQuery> queries) {
+            return this.testAllPass(toStrings(queries));
+        }
+
+        default BitSet testAll(List<String> queries) {
+            BitSet results = new BitSet(queries.size());
+            for (int i = 0; i < queries.size(); i++) {
+                if (this.test(queries.get(i))) {
+                    results.set(i);
+                }
+            }
+            return results;
+        }
+
+        default boolean testAllPass(List<String> queries) {
+            for (String query : queries) {
+                if (!this.test(query)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Oracles that can tell a query that timed out from one that was rejected. Decorators that
+    // remember answers pass TIMEOUT through without remembering it, since it says nothing about the
+    // query.
+    public interface VerdictDiscriminativeOracle extends DiscriminativeOracle {
+        Verdict getVerdict(String query);
+
+        default Verdict getVerdict(SegmentedQuery query) {
+            return this.getVerdict(query.toString());
+        }
+
+        // Fills in the verdicts of a batch, in order. With isAllPass, the batch may stop at the first
+        // verdict that is not ACCEPT; the verdicts of queries that were not executed stay null. The
+        // verdicts are filled in as they arrive, so if the batch throws, those that arrived before
+        // are kept. The batch methods below all go through this one, so decorators only need to
+        // override it.
+        default void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts) {
+            for (int i = 0; i < queries.size(); i++) {
+                verdicts[i] = this.getVerdict(queries.get(i));
+                if (isAllPass && verdicts[i] != Verdict.ACCEPT) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        default boolean test(String query) {
+            return this.getVerdict(query) == Verdict.ACCEPT;
+        }
+
+        @Override
+        default boolean test(SegmentedQuery query) {
+            return this.getVerdict(query) == Verdict.ACCEPT;
+        }
+
+        @Override
+        default BitSet testAllSegments(List<SegmentedQuery> queries) {
+            Verdict[] verdicts = new Verdict[queries.size()];
+            this.getVerdicts(queries, false, verdicts);
+            return getAccepted(verdicts);
+        }
+
+        @Override
+        default boolean testAllPassSegments(List<SegmentedQuery> queries) {
+            Verdict[] verdicts = new Verdict[queries.size()];
+            this.getVerdicts(queries, true, verdicts);
+            return isAllAccepted(verdicts);
+        }
+
+        @Override
+        default BitSet testAll(List<String> queries) {
+            return this.testAllSegments(toSegmentedQueries(queries));
+        }
+
+        @Override
+        default boolean testAllPass(List<String> queries) {
+            return this.testAllPassSegments(toSegmentedQueries(queries));
+        }
+    }
+
+    public static List<SegmentedQuery> toSegmentedQueries(List<String> queries) {
+        List<SegmentedQuery> segmentedQueries = new ArrayList<>(queries.size());
+        for (String query : queries) {
+            segmentedQueries.add(SegmentedQuery.of(query));
+        }
+        return segmentedQueries;
+    }
+
+    public static BitSet getAccepted(Verdict[] verdicts) {
+        BitSet results = new BitSet(verdicts.length);
+        for (int i = 0; i < verdicts.length; i++) {
+            if (verdicts[i] == Verdict.ACCEPT) {
+                results.set(i);
+            }
+        }
+        return results;
+    }
+
+    // false if any verdict is not ACCEPT, including one that is null because it was not executed
+    public static boolean isAllAccepted(Verdict[] verdicts) {
+        for (Verdict verdict : verdicts) {
+            if (verdict != Verdict.ACCEPT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static Verdict getVerdict(Predicate<String> oracle, String query) {
+        if (oracle instanceof VerdictDiscriminativeOracle) {
+            return ((VerdictDiscriminativeOracle) oracle).getVerdict(query);
+        }
+        return oracle.test(query) ? Verdict.ACCEPT : Verdict.REJECT;
+    }
+
+    public static Verdict getVerdict(Predicate<String> oracle, SegmentedQuery query) {
+        if (oracle instanceof VerdictDiscriminativeOracle) {
+            return ((VerdictDiscriminativeOracle) oracle).getVerdict(query);
+        }
+        return test(oracle, query) ? Verdict.ACCEPT : Verdict.REJECT;
+    }
+
+    // Discriminative oracles without verdicts answer through their batch methods, so that batching
+    // oracles still get the whole batch. When not all of an all-pass batch passes, they do not say
+    // which queries failed, so all of its verdicts are left null. Plain predicates are asked one
+    // query at a time.
+    public static void getVerdicts(Predicate<String> oracle, List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts) {
+        if (oracle instanceof VerdictDiscriminativeOracle) {
+            ((VerdictDiscriminativeOracle) oracle).getVerdicts(queries, isAllPass, verdicts);
+        } else if (!(oracle instanceof DiscriminativeOracle)) {
+            for (int i = 0; i < queries.size(); i++) {
+                verdicts[i] = oracle.test(queries.get(i).toString()) ? Verdict.ACCEPT : Verdict.REJECT;
+                if (isAllPass && verdicts[i] != Verdict.ACCEPT) {
+                    break;
+                }
+            }
+        } else if (isAllPass) {
+            if (testAllPassSegments(oracle, queries)) {
+                Arrays.fill(verdicts, 0, queries.size(), Verdict.ACCEPT);
+            }
+        } else {
+            BitSet results = testAllSegments(oracle, queries);
+            for (int i = 0; i < queries.size(); i++) {
+                verdicts[i] = results.get(i) ? Verdict.ACCEPT : Verdict.REJECT;
+            }
+        }
+    }
+
+    // Answers a batch from remembered verdicts where it can, and passes the rest to the oracle as
+    // one batch, each distinct query once. The verdicts other than TIMEOUT that arrive are passed
+    // to remember, even if the batch then throws.
+    private static void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts, Function<String, Verdict> lookup, BiConsumer<List<SegmentedQuery>, Verdict[]> oracle, BiConsumer<String, Verdict> remember) {
+        Map<String, List<Integer>> indices = new LinkedHashMap<>();
+        List<SegmentedQuery> misses = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            String query = queries.get(i).toString();
+            List<Integer> missIndices = indices.get(query);
+            if (missIndices != null) {
+                missIndices.add(i);
+                continue;
+            }
+            verdicts[i] = lookup.apply(query);
+            if (verdicts[i] == null) {
+                indices.computeIfAbsent(query, q -> new ArrayList<>()).add(i);
+                misses.add(queries.get(i));
+            } else if (isAllPass && verdicts[i] != Verdict.ACCEPT) {
+                return;
+            }
+        }
+        if (misses.isEmpty()) {
+            return;
+        }
+        Verdict[] results = new Verdict[misses.size()];
+        try {
+            oracle.accept(misses, results);
+        } finally {
+            Iterator<Map.Entry<String, List<Integer>>> it = indices.entrySet().iterator();
+            for (Verdict result : results) {
+                Map.Entry<String, List<Integer>> entry = it.next();
+                for (int i : entry.getValue()) {
+                    verdicts[i] = result;
+                }
+                if (result != null && result != Verdict.TIMEOUT) {
+                    remember.accept(entry.getKey(), result);
+                }
+            }
+        }
+    }
+
+    // Implemented by oracles that wrap another oracle, so that the decorators in a stack can be found.
+    public interface OracleDecorator {
+        Predicate<String> getOracle();
+    }
+
+    // Returns the outermost oracle of the given class in the stack of decorators, if any.
+    public static <T> Maybe<T> find(Predicate<String> oracle, Class<T> clazz) {
+        while (!clazz.isInstance(oracle)) {
+            if (!(oracle instanceof OracleDecorator)) {
+                return new Maybe<>();
+            }
+            oracle = ((OracleDecorator) oracle).getOracle();
+        }
+        return new Maybe<>(clazz.cast(oracle));
+    }
+
+    public static BitSet testAll(Predicate<String> oracle, List<String> queries) {
+        if (oracle instanceof DiscriminativeOracle) {
+            return ((DiscriminativeOracle) oracle).testAll(queries);
+        }
+        BitSet results = new BitSet(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            if (oracle.test(queries.get(i))) {
+                results.set(i);
+            }
+        }
+        return results;
+    }
+
+    public static boolean testAllPass(Predicate<String> oracle, List<String> queries) {
+        if (oracle instanceof DiscriminativeOracle) {
+            return ((DiscriminativeOracle) oracle).testAllPass(queries);
+        }
+        for (String query : queries) {
+            if (!oracle.test(query)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean test(Predicate<String> oracle, SegmentedQuery query) {
+        if (oracle instanceof DiscriminativeOracle) {
+            return ((DiscriminativeOracle) oracle).test(query);
+        }
+        return oracle.test(query.toString());
+    }
+
+    public static BitSet testAllSegments(Predicate<String> oracle, List<SegmentedQuery> queries) {
+        if (oracle instanceof DiscriminativeOracle) {
+            return ((DiscriminativeOracle) oracle).testAllSegments(queries);
+        }
+        return testAll(oracle, toStrings(queries));
+    }
+
+    public static boolean testAllPassSegments(Predicate<String> oracle, List<SegmentedQuery> queries) {
+        if (oracle instanceof DiscriminativeOracle) {
+            return ((DiscriminativeOracle) oracle).testAllPassSegments(queries);
+        }
+        for (SegmentedQuery query : queries) {
+            if (!oracle.test(query.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Adapts an in-process recognizer that reads its input as a CharSequence, so that segmented
+    // queries reach it without being concatenated.
+    public static class CharSequenceDiscriminativeOracle implements DiscriminativeOracle {
+        private final Predicate<CharSequence> oracle;
+
+        public CharSequenceDiscriminativeOracle(Predicate<CharSequence> oracle) {
+            this.oracle = oracle;
+        }
+
+        @Override
+        public boolean test(String query) {
+            return this.oracle.test(query);
+        }
+
+        @Override
+        public boolean test(SegmentedQuery query) {
+            return this.oracle.test(query);
+        }
+
+        @Override
+        public BitSet testAllSegments(List<SegmentedQuery> queries) {
+            BitSet results = new BitSet(queries.size());
+            for (int i = 0; i < queries.size(); i++) {
+                if (this.oracle.test(queries.get(i))) {
+                    results.set(i);
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public boolean testAllPassSegments(List<SegmentedQuery> queries) {
+            for (SegmentedQuery query : queries) {
+                if (!this.oracle.test(query)) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     public interface Wrapper extends Function<String,String> {
@@ -52,18 +497,925 @@ public class OracleUtils {
         }
     }
 
-    public static class WrappedDiscriminativeOracle implements DiscriminativeOracle {
+    public static class WrappedDiscriminativeOracle implements VerdictDiscriminativeOracle, OracleDecorator {
         private final Predicate<String> oracle;
         private final Wrapper wrapper;
+        private final OracleStore store;
 
-        public WrappedDiscriminativeOracle(Predicate<String> oracle, Wrapper wrapper) {
+        public WrappedDiscriminativeOracle(Predicate<String> oracle, Wrapper wrapper, OracleStore store) {
             this.oracle = oracle;
             this.wrapper = wrapper;
+            this.store = store;
+        }
+
+        public WrappedDiscriminativeOracle(Predicate<String> oracle, Wrapper wrapper) {
+            this(oracle, wrapper, null);
+        }
+
+        @Override
+        public Predicate<String> getOracle() {
+            return this.oracle;
+        }
+
+        @Override
+        public Verdict getVerdict(String query) {
+            String wrappedQuery = this.wrapper.apply(query);
+            return this.store == null ? OracleUtils.getVerdict(this.oracle, wrappedQuery) : this.store.getVerdict(wrappedQuery, q -> OracleUtils.getVerdict(this.oracle, q));
+        }
+    }
+
+    // A TIMEOUT is passed through but not cached, so the query is executed again the next time.
+    public static class CachedDiscriminativeOracle implements VerdictDiscriminativeOracle, OracleDecorator {
+        public static final long DEFAULT_MAX_CHARACTERS = 1L << 26;
+        // approximate per-entry cost (in characters) of the map entry, key object, and verdict
+        private static final int ENTRY_OVERHEAD = 32;
+
+        private final Predicate<String> oracle;
+        private final long maxCharacters;
+        private final LinkedHashMap<String, Verdict> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private long numCharacters = 0;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        public CachedDiscriminativeOracle(Predicate<String> oracle, long maxCharacters) {
+            if (maxCharacters <= 0) {
+                throw new IllegalArgumentException("Invalid cache size: " + maxCharacters);
+            }
+            this.oracle = oracle;
+            this.maxCharacters = maxCharacters;
+        }
+
+        public CachedDiscriminativeOracle(Predicate<String> oracle) {
+            this(oracle, DEFAULT_MAX_CHARACTERS);
+        }
+
+        @Override
+        public Predicate<String> getOracle() {
+            return this.oracle;
+        }
+
+        private static long getWeight(String query) {
+            return query.length() + ENTRY_OVERHEAD;
+        }
+
+        private Verdict get(String query) {
+            synchronized (this.cache) {
+                Verdict result = this.cache.get(query);
+                if (result != null) {
+                    this.hits.incrementAndGet();
+                }
+                return result;
+            }
+        }
+
+        private void put(String query, Verdict result) {
+            long weight = getWeight(query);
+            if (weight > this.maxCharacters) {
+                return;
+            }
+            synchronized (this.cache) {
+                if (this.cache.put(query, result) == null) {
+                    this.numCharacters += weight;
+                }
+                Iterator<Map.Entry<String, Verdict>> it = this.cache.entrySet().iterator();
+                while (this.numCharacters > this.maxCharacters && it.hasNext()) {
+                    this.numCharacters -= getWeight(it.next().getKey());
+                    it.remove();
+                }
+            }
+        }
+
+        @Override
+        public Verdict getVerdict(String query) {
+            Verdict result = this.get(query);
+            if (result != null) {
+                return result;
+            }
+            this.misses.incrementAndGet();
+            result = OracleUtils.getVerdict(this.oracle, query);
+            if (result != Verdict.TIMEOUT) {
+                this.put(query, result);
+            }
+            return result;
+        }
+
+        @Override
+        public Verdict getVerdict(SegmentedQuery query) {
+            Verdict[] verdicts = new Verdict[1];
+            this.getVerdicts(List.of(query), false, verdicts);
+            return verdicts[0];
+        }
+
+        // the misses go to the wrapped oracle as one batch
+        @Override
+        public void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts) {
+            OracleUtils.getVerdicts(queries, isAllPass, verdicts, this::get, (misses, results) -> {
+                this.misses.addAndGet(misses.size());
+                OracleUtils.getVerdicts(this.oracle, misses, isAllPass, results);
+            }, this::put);
+        }
+
+        public long getHits() {
+            return this.hits.get();
+        }
+
+        public long getMisses() {
+            return this.misses.get();
+        }
+
+        public double getHitRate() {
+            long hits = this.getHits();
+            long total = hits + this.getMisses();
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        public int size() {
+            synchronized (this.cache) {
+                return this.cache.size();
+            }
+        }
+
+        public void clear() {
+            synchronized (this.cache) {
+                this.cache.clear();
+                this.numCharacters = 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + this.getHits() + ", misses: " + this.getMisses() + ", entries: " + this.size();
+        }
+    }
+
+    // Coalesces concurrent calls for the same query: a call that arrives while an identical query is
+    // still executing waits for that result instead of executing the query again. Nothing is kept
+    // once the query completes, so compose with a CachedDiscriminativeOracle (outside this one) to
+    // also reuse completed results.
+    public static class SingleFlightDiscriminativeOracle implements VerdictDiscriminativeOracle, OracleDecorator {
+        private final Predicate<String> oracle;
+        private final ConcurrentHashMap<String, CompletableFuture<Verdict>> inFlight = new ConcurrentHashMap<>();
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+
+        public SingleFlightDiscriminativeOracle(Predicate<String> oracle) {
+            this.oracle = oracle;
+        }
+
+        @Override
+        public Predicate<String> getOracle() {
+            return this.oracle;
+        }
+
+        private static Verdict join(CompletableFuture<Verdict> future) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw new RuntimeException("Error executing oracle!", e.getCause());
+            }
+        }
+
+        // waiters get the verdict of the execution they joined, including a TIMEOUT
+        @Override
+        public Verdict getVerdict(String query) {
+            return this.getVerdict(SegmentedQuery.of(query));
+        }
+
+        @Override
+        public Verdict getVerdict(SegmentedQuery query) {
+            Verdict[] verdicts = new Verdict[1];
+            this.getVerdicts(List.of(query), false, verdicts);
+            return verdicts[0];
+        }
+
+        // The queries that are not in flight go to the wrapped oracle as one batch; the others wait
+        // for the calls executing them. A query that another call's all-pass batch did not reach
+        // completes with null, and is then executed here.
+        @Override
+        public void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts) {
+            List<CompletableFuture<Verdict>> futures = new ArrayList<>(queries.size());
+            boolean[] isOwned = new boolean[queries.size()];
+            Map<String, CompletableFuture<Verdict>> owned = new LinkedHashMap<>();
+            List<SegmentedQuery> executed = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i++) {
+                String query = queries.get(i).toString();
+                CompletableFuture<Verdict> future = owned.get(query);
+                if (future == null) {
+                    future = new CompletableFuture<>();
+                    CompletableFuture<Verdict> current = this.inFlight.putIfAbsent(query, future);
+                    if (current == null) {
+                        owned.put(query, future);
+                        executed.add(queries.get(i));
+                    } else {
+                        this.coalesced.incrementAndGet();
+                        future = current;
+                    }
+                }
+                futures.add(future);
+                isOwned[i] = owned.get(query) == future;
+            }
+            if (!executed.isEmpty()) {
+                this.executions.addAndGet(executed.size());
+                List<CompletableFuture<Verdict>> ownedFutures = new ArrayList<>(owned.values());
+                Verdict[] results = new Verdict[executed.size()];
+                try {
+                    OracleUtils.getVerdicts(this.oracle, executed, isAllPass, results);
+                } catch (RuntimeException | Error e) {
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i] == null) {
+                            ownedFutures.get(i).completeExceptionally(e);
+                        }
+                    }
+                    throw e;
+                } finally {
+                    for (int i = 0; i < results.length; i++) {
+                        ownedFutures.get(i).complete(results[i]);
+                    }
+                    for (Map.Entry<String, CompletableFuture<Verdict>> entry : owned.entrySet()) {
+                        this.inFlight.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            // a failure among the executed queries decides an all-pass batch without waiting
+            boolean isFailed = false;
+            for (int i = 0; i < queries.size(); i++) {
+                if (isOwned[i]) {
+                    verdicts[i] = join(futures.get(i));
+                    isFailed |= isAllPass && verdicts[i] != Verdict.ACCEPT;
+                }
+            }
+            for (int i = 0; i < queries.size() && !isFailed; i++) {
+                if (!isOwned[i]) {
+                    verdicts[i] = join(futures.get(i));
+                    if (verdicts[i] == null) {
+                        verdicts[i] = this.getVerdict(queries.get(i));
+                    }
+                    isFailed = isAllPass && verdicts[i] != Verdict.ACCEPT;
+                }
+            }
+        }
+
+        public long getExecutions() {
+            return this.executions.get();
+        }
+
+        // number of calls that waited on an identical in-flight query instead of executing it
+        public long getCoalesced() {
+            return this.coalesced.get();
+        }
+
+        @Override
+        public String toString() {
+            return "executions: " + this.getExecutions() + ", coalesced: " + this.getCoalesced();
+        }
+    }
+
+    // Append-only log of (hash(fingerprint, query), verdict) records, which several processes may
+    // share. Each record carries a CRC, so a record torn by a crash mid-write is detected and
+    // truncated the next time the store is opened, or written over by the next append.
+    public static class OracleStore implements Closeable {
+        private static final byte[] MAGIC = "GLADEOS1".getBytes(StandardCharsets.US_ASCII);
+        private static final int KEY_LENGTH = 20;
+        private static final int RECORD_LENGTH = KEY_LENGTH + 1 + 4;
+        private static final int RECORDS_PER_READ = 4096;
+
+        private final byte[] fingerprint;
+        private final FileChannel channel;
+        private final Map<ByteBuffer, Boolean> verdicts = new ConcurrentHashMap<>();
+        private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(OracleStore::newDigest);
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong missNanos = new AtomicLong();
+
+        public OracleStore(File file, String fingerprint) throws IOException {
+            this.fingerprint = fingerprint.getBytes(StandardCharsets.UTF_8);
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = this.channel.lock();
+                try {
+                    this.load();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                this.channel.close();
+                throw e;
+            }
+        }
+
+        public static String getFileFingerprint(String filename) {
+            File file = new File(filename);
+            return file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+        }
+
+        private static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("Error creating oracle store digest!", e);
+            }
+        }
+
+        private static int getChecksum(ByteBuffer record) {
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), record.arrayOffset() + record.position(), KEY_LENGTH + 1);
+            return (int) crc.getValue();
+        }
+
+        private void load() throws IOException {
+            long size = this.channel.size();
+            if (size < MAGIC.length) {
+                this.channel.truncate(0);
+                this.channel.write(ByteBuffer.wrap(MAGIC), 0);
+                return;
+            }
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            this.channel.read(magic, 0);
+            if (!Arrays.equals(magic.array(), MAGIC)) {
+                throw new IOException("Invalid oracle store file!");
+            }
+            long position = MAGIC.length;
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH * RECORDS_PER_READ);
+            while (position + RECORD_LENGTH <= size) {
+                buffer.clear();
+                int length = 0;
+                while (buffer.hasRemaining() && position + length < size) {
+                    int read = this.channel.read(buffer, position + length);
+                    if (read < 0) {
+                        break;
+                    }
+                    length += read;
+                }
+                buffer.flip();
+                boolean valid = true;
+                while (buffer.remaining() >= RECORD_LENGTH) {
+                    ByteBuffer record = buffer.slice();
+                    record.limit(RECORD_LENGTH);
+                    if (getChecksum(record) != record.getInt(KEY_LENGTH + 1)) {
+                        valid = false;
+                        break;
+                    }
+                    byte[] key = new byte[KEY_LENGTH];
+                    record.get(key);
+                    this.verdicts.put(ByteBuffer.wrap(key), record.get() != 0);
+                    buffer.position(buffer.position() + RECORD_LENGTH);
+                    position += RECORD_LENGTH;
+                }
+                if (!valid) {
+                    break;
+                }
+            }
+            if (position != size) {
+                this.channel.truncate(position);
+            }
+        }
+
+        private ByteBuffer getKey(String query) {
+            MessageDigest digest = this.digest.get();
+            digest.update(this.fingerprint);
+            digest.update((byte) 0);
+            return ByteBuffer.wrap(digest.digest(query.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void append(ByteBuffer key, boolean verdict) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+            record.put(key.array()).put((byte) (verdict ? 1 : 0));
+            record.putInt(getChecksum(record.duplicate().position(0)));
+            record.flip();
+            synchronized (this.channel) {
+                try {
+                    FileLock lock = this.channel.lock();
+                    try {
+                        // a writer that died mid-record leaves a torn tail: write over it, so that this
+                        // record (and those after it) stay aligned and are not truncated by the next load
+                        long position = MAGIC.length + (this.channel.size() - MAGIC.length) / RECORD_LENGTH * RECORD_LENGTH;
+                        while (record.hasRemaining()) {
+                            position += this.channel.write(record, position);
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Error writing oracle store!", e);
+                }
+            }
+        }
+
+        public Maybe<Boolean> get(String query) {
+            Boolean verdict = this.verdicts.get(this.getKey(query));
+            return verdict == null ? new Maybe<>() : new Maybe<>(verdict);
+        }
+
+        public void put(String query, boolean verdict) {
+            ByteBuffer key = this.getKey(query);
+            if (this.verdicts.putIfAbsent(key, verdict) == null) {
+                this.append(key, verdict);
+            }
+        }
+
+        // TIMEOUT verdicts are passed through but not stored, since they say nothing about the query
+        public Verdict getVerdict(String query, Function<String, Verdict> oracle) {
+            ByteBuffer key = this.getKey(query);
+            Boolean verdict = this.verdicts.get(key);
+            if (verdict != null) {
+                this.hits.incrementAndGet();
+                return verdict ? Verdict.ACCEPT : Verdict.REJECT;
+            }
+            this.misses.incrementAndGet();
+            long time = System.nanoTime();
+            Verdict result = oracle.apply(query);
+            this.missNanos.addAndGet(System.nanoTime() - time);
+            if (result != Verdict.TIMEOUT && this.verdicts.putIfAbsent(key, result == Verdict.ACCEPT) == null) {
+                this.append(key, result == Verdict.ACCEPT);
+            }
+            return result;
+        }
+
+        // the queries that are not stored go to the oracle as one batch
+        public void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts, BiConsumer<List<SegmentedQuery>, Verdict[]> oracle) {
+            OracleUtils.getVerdicts(queries, isAllPass, verdicts, query -> {
+                Boolean verdict = this.verdicts.get(this.getKey(query));
+                if (verdict == null) {
+                    return null;
+                }
+                this.hits.incrementAndGet();
+                return verdict ? Verdict.ACCEPT : Verdict.REJECT;
+            }, (misses, results) -> {
+                this.misses.addAndGet(misses.size());
+                long time = System.nanoTime();
+                try {
+                    oracle.accept(misses, results);
+                } finally {
+                    this.missNanos.addAndGet(System.nanoTime() - time);
+                }
+            }, (query, result) -> this.put(query, result == Verdict.ACCEPT));
+        }
+
+        public boolean test(String query, Predicate<String> oracle) {
+            return this.getVerdict(query, q -> OracleUtils.getVerdict(oracle, q)) == Verdict.ACCEPT;
+        }
+
+        public int size() {
+            return this.verdicts.size();
+        }
+
+        public long getHits() {
+            return this.hits.get();
+        }
+
+        public long getMisses() {
+            return this.misses.get();
+        }
+
+        public double getHitRate() {
+            long hits = this.getHits();
+            long total = hits + this.getMisses();
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        // estimate of the oracle time avoided, assuming hits would have cost as much as the average miss
+        public double getSavedSeconds() {
+            long misses = this.getMisses();
+            return misses == 0 ? 0.0 : (double) this.missNanos.get() / misses * this.getHits() / 1e9;
+        }
+
+        public void flush() throws IOException {
+            this.channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + this.getHits() + ", misses: " + this.getMisses() + ", hit rate: " + this.getHitRate() + ", saved: " + this.getSavedSeconds() + " seconds";
+        }
+    }
+
+    public static class StoredDiscriminativeOracle implements VerdictDiscriminativeOracle, OracleDecorator {
+        private final Predicate<String> oracle;
+        private final OracleStore store;
+
+        public StoredDiscriminativeOracle(Predicate<String> oracle, OracleStore store) {
+            this.oracle = oracle;
+            this.store = store;
+        }
+
+        @Override
+        public Predicate<String> getOracle() {
+            return this.oracle;
+        }
+
+        @Override
+        public Verdict getVerdict(String query) {
+            return this.store.getVerdict(query, q -> OracleUtils.getVerdict(this.oracle, q));
+        }
+
+        @Override
+        public Verdict getVerdict(SegmentedQuery query) {
+            Verdict[] verdicts = new Verdict[1];
+            this.getVerdicts(List.of(query), false, verdicts);
+            return verdicts[0];
+        }
+
+        @Override
+        public void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts) {
+            this.store.getVerdicts(queries, isAllPass, verdicts, (misses, results) -> OracleUtils.getVerdicts(this.oracle, misses, isAllPass, results));
+        }
+    }
+
+    // Fans batches out to a fixed pool of threads, so the wrapped oracle must be thread safe.
+    public static class ConcurrentDiscriminativeOracle implements VerdictDiscriminativeOracle, OracleDecorator, Closeable {
+        private final Predicate<String> oracle;
+        private final int concurrency;
+        private final ExecutorService executor;
+
+        public ConcurrentDiscriminativeOracle(Predicate<String> oracle, int concurrency) {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+            }
+            this.oracle = oracle;
+            this.concurrency = concurrency;
+            this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+                Thread thread = new Thread(runnable, "glade-oracle");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public Predicate<String> getOracle() {
+            return this.oracle;
+        }
+
+        public int getConcurrency() {
+            return this.concurrency;
+        }
+
+        @Override
+        public Verdict getVerdict(String query) {
+            return OracleUtils.getVerdict(this.oracle, query);
+        }
+
+        @Override
+        public Verdict getVerdict(SegmentedQuery query) {
+            return OracleUtils.getVerdict(this.oracle, query);
+        }
+
+        private static Verdict getResult(Future<Verdict> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for oracle!", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Error executing oracle!", e.getCause());
+            }
+        }
+
+        // each segmented query is concatenated, if at all, by the wrapped oracle on a pool thread
+        @Override
+        public void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts) {
+            if (queries.size() <= 1) {
+                VerdictDiscriminativeOracle.super.getVerdicts(queries, isAllPass, verdicts);
+                return;
+            }
+            CompletionService<Verdict> service = new ExecutorCompletionService<>(this.executor);
+            Map<Future<Verdict>, Integer> indices = new HashMap<>();
+            Scope scope = ProfileUtils.getScope();
+            for (int i = 0; i < queries.size(); i++) {
+                SegmentedQuery query = queries.get(i);
+                indices.put(service.submit(() -> ProfileUtils.run(scope, () -> OracleUtils.getVerdict(this.oracle, query))), i);
+            }
+            try {
+                for (int i = 0; i < queries.size(); i++) {
+                    Future<Verdict> future = service.take();
+                    int index = indices.get(future);
+                    verdicts[index] = getResult(future);
+                    if (isAllPass && verdicts[index] != Verdict.ACCEPT) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for oracle!", e);
+            } finally {
+                // queries that have not started are dropped; running ones finish in the background
+                for (Future<Verdict> future : indices.keySet()) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            this.executor.shutdown();
+        }
+    }
+
+    // In-process oracle for parsers hosted in this JVM. Parser instances are expensive to build, so
+    // they are kept in a pool, handed to one caller at a time, and reset between queries. A query
+    // that throws is rejected. A query that runs past its CPU budget is interrupted by a watchdog
+    // and rejected, and its parser is discarded; the parser must respond to interruption, e.g., by
+    // reading the query through getReader.
+    public static class PooledDiscriminativeOracle<P> implements DiscriminativeOracle {
+        public interface Recognizer<P> {
+            boolean test(P parser, String query) throws Exception;
+        }
+
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        private final Supplier<P> factory;
+        private final Recognizer<P> recognizer;
+        private final Consumer<P> reset;
+        private final long timeoutNanos;
+        private final Deque<P> pool = new ConcurrentLinkedDeque<>();
+        private final AtomicLong numCreated = new AtomicLong();
+        private final AtomicLong numTimeouts = new AtomicLong();
+
+        // timeoutMillis is CPU time of the calling thread (wall clock where that is unavailable); -1 means no timeout
+        public PooledDiscriminativeOracle(Supplier<P> factory, Recognizer<P> recognizer, Consumer<P> reset, long timeoutMillis) {
+            this.factory = factory;
+            this.recognizer = recognizer;
+            this.reset = reset;
+            this.timeoutNanos = timeoutMillis == -1 ? -1 : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        public PooledDiscriminativeOracle(Supplier<P> factory, Recognizer<P> recognizer) {
+            this(factory, recognizer, parser -> {}, -1);
+        }
+
+        // Reads the query, failing with an InterruptedIOException once the calling thread is interrupted.
+        public static Reader getReader(String query) {
+            return new StringReader(query) {
+                @Override
+                public int read(char[] buffer, int offset, int length) throws IOException {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Oracle query timed out!");
+                    }
+                    return super.read(buffer, offset, length);
+                }
+
+                @Override
+                public int read() throws IOException {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Oracle query timed out!");
+                    }
+                    return super.read();
+                }
+            };
+        }
+
+        private static long getCpuTime(Thread thread) {
+            long time = THREADS.isThreadCpuTimeSupported() ? THREADS.getThreadCpuTime(thread.getId()) : -1;
+            return time == -1 ? System.nanoTime() : time;
+        }
+
+        // Interrupts the thread once it has used up its budget. Checks are scheduled for the earliest
+        // moment the budget could run out, so a thread that is blocked is checked again later.
+        private class Watchdog implements Runnable {
+            private final Thread thread = Thread.currentThread();
+            private final long start = getCpuTime(this.thread);
+            private ScheduledFuture<?> future;
+            private boolean isDone = false;
+            private boolean isExpired = false;
+
+            private synchronized void schedule(long delayNanos) {
+                this.future = ShellUtils.TIMEOUTS.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public synchronized void run() {
+                if (this.isDone) {
+                    return;
+                }
+                long remaining = timeoutNanos - (getCpuTime(this.thread) - this.start);
+                if (remaining <= 0) {
+                    this.isExpired = true;
+                    this.thread.interrupt();
+                } else {
+                    this.schedule(Math.max(remaining, TimeUnit.MILLISECONDS.toNanos(1)));
+                }
+            }
+
+            // returns whether the query timed out, and clears the interrupt it raised
+            private boolean close() {
+                synchronized (this) {
+                    this.isDone = true;
+                    this.future.cancel(false);
+                }
+                if (this.isExpired) {
+                    Thread.interrupted();
+                }
+                return this.isExpired;
+            }
+        }
+
+        @Override
+        public boolean test(String query) {
+            P parser = this.pool.pollFirst();
+            if (parser == null) {
+                this.numCreated.incrementAndGet();
+                parser = this.factory.get();
+            }
+            Watchdog watchdog = null;
+            if (this.timeoutNanos != -1) {
+                watchdog = new Watchdog();
+                watchdog.schedule(this.timeoutNanos);
+            }
+            boolean result;
+            boolean isTimeout;
+            try {
+                result = this.recognizer.test(parser, query);
+            } catch (Exception e) {
+                result = false;
+            } finally {
+                isTimeout = watchdog != null && watchdog.close();
+            }
+            if (isTimeout) {
+                this.numTimeouts.incrementAndGet();
+                return false;
+            }
+            this.reset.accept(parser);
+            this.pool.offerFirst(parser);
+            return result;
+        }
+
+        // number of parser instances built (i.e., the peak number of concurrent callers, plus one per timeout)
+        public long getNumCreated() {
+            return this.numCreated.get();
+        }
+
+        public long getNumTimeouts() {
+            return this.numTimeouts.get();
+        }
+    }
+
+    // An oracle that can snapshot its state after a prefix and resume from it. States must not be
+    // modified by advance (so a snapshot can be resumed any number of times); null is the state of
+    // a prefix that no suffix can make acceptable.
+    public interface IncrementalOracle<S> {
+        S getInitialState();
+
+        // state after reading text[start, end) from the given (non-null) state
+        S advance(S state, CharSequence text, int start, int end);
+
+        boolean isAccepted(S state);
+    }
+
+    // Runs an incremental oracle so that prefixes shared between queries are only parsed once. Each
+    // thread keeps a trie of its most recent queries, stored as a sorted map from each query (a leaf
+    // of the trie) to the checkpoints along its path: one every checkpointInterval characters, one
+    // where it branches off from its closest neighbor, and one at its end. A new query resumes from
+    // the deepest checkpoint it shares with its closest neighbor, which is always its floor or ceiling
+    // in the sorted map. This is not a general speedup, and nothing uses it unless the caller wraps a
+    // recognizer in it. The trie costs a few microseconds per query, which is more than a cheap
+    // recognizer spends parsing the whole query: learning with the bare parentheses recognizer is
+    // about 1.5x slower than parsing every query from scratch. It only pays off when parsing a
+    // character is expensive (in IncrementalOracleTest, from about 50 simulated operations per
+    // character).
+    public static class IncrementalDiscriminativeOracle<S> implements DiscriminativeOracle {
+        public static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+        public static final int DEFAULT_HISTORY_SIZE = 512;
+
+        private static class Checkpoint<S> {
+            private final int length;
+            private final S state;
+
+            private Checkpoint(int length, S state) {
+                this.length = length;
+                this.state = state;
+            }
+        }
+
+        private class History {
+            private final TreeMap<String, List<Checkpoint<S>>> paths = new TreeMap<>();
+            private final Deque<String> queries = new ArrayDeque<>();
+        }
+
+        private final IncrementalOracle<S> oracle;
+        private final int checkpointInterval;
+        private final int historySize;
+        private final List<Checkpoint<S>> root;
+        private final ThreadLocal<History> history = ThreadLocal.withInitial(History::new);
+        private final AtomicLong numQueryCharacters = new AtomicLong();
+        private final AtomicLong numParsedCharacters = new AtomicLong();
+
+        public IncrementalDiscriminativeOracle(IncrementalOracle<S> oracle, int checkpointInterval, int historySize) {
+            if (checkpointInterval < 1 || historySize < 1) {
+                throw new IllegalArgumentException("Invalid incremental oracle parameters!");
+            }
+            this.oracle = oracle;
+            this.checkpointInterval = checkpointInterval;
+            this.historySize = historySize;
+            this.root = List.of(new Checkpoint<>(0, oracle.getInitialState()));
+        }
+
+        public IncrementalDiscriminativeOracle(IncrementalOracle<S> oracle) {
+            this(oracle, DEFAULT_CHECKPOINT_INTERVAL, DEFAULT_HISTORY_SIZE);
+        }
+
+        private static int getCommonPrefixLength(String first, String second) {
+            int length = Math.min(first.length(), second.length());
+            for (int i = 0; i < length; i++) {
+                if (first.charAt(i) != second.charAt(i)) {
+                    return i;
+                }
+            }
+            return length;
         }
 
         @Override
         public boolean test(String query) {
-            return this.oracle.test(this.wrapper.apply(query));
+            History history = this.history.get();
+            List<Checkpoint<S>> base = this.root;
+            int shared = 0;
+            for (Map.Entry<String, List<Checkpoint<S>>> neighbor : Arrays.asList(history.paths.floorEntry(query), history.paths.ceilingEntry(query))) {
+                if (neighbor != null) {
+                    int length = getCommonPrefixLength(neighbor.getKey(), query);
+                    if (length >= shared) {
+                        base = neighbor.getValue();
+                        shared = length;
+                    }
+                }
+            }
+            List<Checkpoint<S>> path = new ArrayList<>();
+            for (Checkpoint<S> checkpoint : base) {
+                if (checkpoint.length > shared) {
+                    break;
+                }
+                path.add(checkpoint);
+            }
+            Checkpoint<S> checkpoint = path.get(path.size() - 1);
+            S state = checkpoint.state;
+            int position = checkpoint.length;
+            while (state != null && position < query.length()) {
+                int next = Math.min(query.length(), (position / this.checkpointInterval + 1) * this.checkpointInterval);
+                if (shared > position && shared < next) {
+                    next = shared;
+                }
+                state = this.oracle.advance(state, query, position, next);
+                this.numParsedCharacters.addAndGet(next - position);
+                position = next;
+                path.add(new Checkpoint<>(position, state));
+            }
+            this.numQueryCharacters.addAndGet(query.length());
+            if (history.paths.put(query, path) == null) {
+                history.queries.addLast(query);
+                if (history.queries.size() > this.historySize) {
+                    history.paths.remove(history.queries.removeFirst());
+                }
+            }
+            return state != null && this.oracle.isAccepted(state);
+        }
+
+        // A batch is run in sorted order, which groups the queries by their shared prefixes: each
+        // query then resumes from the one before it, and a batch larger than the history does not
+        // evict the neighbors of the queries still to come. The segmented batch methods concatenate
+        // the queries and end up here as well.
+        private static Integer[] getOrder(List<String> queries) {
+            Integer[] order = new Integer[queries.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing(queries::get));
+            return order;
+        }
+
+        @Override
+        public BitSet testAll(List<String> queries) {
+            BitSet results = new BitSet(queries.size());
+            for (int i : getOrder(queries)) {
+                if (this.test(queries.get(i))) {
+                    results.set(i);
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public boolean testAllPass(List<String> queries) {
+            for (int i : getOrder(queries)) {
+                if (!this.test(queries.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public long getNumQueryCharacters() {
+            return this.numQueryCharacters.get();
+        }
+
+        public long getNumParsedCharacters() {
+            return this.numParsedCharacters.get();
+        }
+
+        @Override
+        public String toString() {
+            return "query characters: " + this.getNumQueryCharacters() + ", parsed characters: " + this.getNumParsedCharacters();
         }
     }
 }
@@ -0,0 +1,409 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.util;
+
+import glade.util.OracleUtils.OracleDecorator;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.OracleUtils.Verdict;
+import glade.util.OracleUtils.VerdictDiscriminativeOracle;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+public class ProfileUtils {
+    public enum Phase {
+        CHECK, REGEX, GENERALIZE, MERGE, OTHER
+    }
+
+    // seed index used for work that is not specific to one seed (e.g., merges across seeds)
+    public static final int ALL_SEEDS = -1;
+
+    public static class Scope {
+        public static final Scope DEFAULT = new Scope(Phase.OTHER, ALL_SEEDS);
+
+        public final Phase phase;
+        public final int seed;
+
+        public Scope(Phase phase, int seed) {
+            this.phase = phase;
+            this.seed = seed;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Scope)) {
+                return false;
+            }
+            Scope other = (Scope) obj;
+            return this.phase == other.phase && this.seed == other.seed;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.phase.hashCode() + this.seed;
+        }
+
+        @Override
+        public String toString() {
+            return this.phase + "/" + this.seed;
+        }
+    }
+
+    // Restores the enclosing scope of the current thread when closed.
+    public static class Region implements AutoCloseable {
+        private final Scope previous;
+        private final PhaseEvent event;
+
+        private Region(Scope previous, PhaseEvent event) {
+            this.previous = previous;
+            this.event = event;
+        }
+
+        @Override
+        public void close() {
+            CURRENT.set(this.previous);
+            if (this.event != null) {
+                this.event.commit();
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scope> CURRENT = ThreadLocal.withInitial(() -> Scope.DEFAULT);
+
+    public static Scope getScope() {
+        return CURRENT.get();
+    }
+
+    // Used to carry the scope of the calling thread into worker threads.
+    public static Region enter(Scope scope) {
+        Region region = new Region(CURRENT.get(), null);
+        CURRENT.set(scope);
+        return region;
+    }
+
+    public static Region enter(Phase phase, int seed) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.name();
+            event.seed = seed;
+            event.begin();
+        } else {
+            event = null;
+        }
+        Region region = new Region(CURRENT.get(), event);
+        CURRENT.set(new Scope(phase, seed));
+        return region;
+    }
+
+    // keeps the seed of the enclosing scope
+    public static Region enter(Phase phase) {
+        return enter(phase, CURRENT.get().seed);
+    }
+
+    // Runs the body in the (phase, seed) scope, and restores the enclosing scope afterwards.
+    public static <T> T run(Phase phase, int seed, Supplier<T> body) {
+        return run(enter(phase, seed), body);
+    }
+
+    // Runs the body in a scope carried over from another thread.
+    public static <T> T run(Scope scope, Supplier<T> body) {
+        return run(enter(scope), body);
+    }
+
+    private static <T> T run(Region region, Supplier<T> body) {
+        try {
+            return body.get();
+        } finally {
+            region.close();
+        }
+    }
+
+    // Flight Recorder events. Call sites only fill in fields once isEnabled() or shouldCommit()
+    // holds, so they cost next to nothing when no recording is running.
+
+    @Name("glade.Phase")
+    @Label("Synthesis Phase")
+    @Category("GLADE")
+    public static class PhaseEvent extends Event {
+        @Label("Phase")
+        public String phase;
+
+        @Label("Seed")
+        public int seed;
+    }
+
+    @Name("glade.OracleCheck")
+    @Label("Oracle Check")
+    @Category("GLADE")
+    @Description("A batch of oracle queries that must all be accepted")
+    public static class OracleCheckEvent extends Event {
+        @Label("Phase")
+        public String phase;
+
+        @Label("Seed")
+        public int seed;
+
+        @Label("Queries")
+        public int queries;
+
+        @Label("Query Length")
+        @Description("Total length of the queries, in characters")
+        public long queryLength;
+
+        @Label("Accepted")
+        public boolean accepted;
+    }
+
+    @Name("glade.CandidateSearch")
+    @Label("Candidate Search")
+    @Category("GLADE")
+    @Description("Search for a repetition or alternation split of one substring")
+    public static class CandidateSearchEvent extends Event {
+        @Label("Seed")
+        public int seed;
+
+        @Label("Kind")
+        public String kind;
+
+        @Label("Node Depth")
+        public int depth;
+
+        @Label("Example Length")
+        public int length;
+
+        @Label("Candidates")
+        public int candidates;
+
+        @Label("Found")
+        public boolean found;
+    }
+
+    @Name("glade.ConstantGeneralization")
+    @Label("Constant Generalization")
+    @Category("GLADE")
+    public static class ConstantGeneralizationEvent extends Event {
+        @Label("Seed")
+        public int seed;
+
+        @Label("Example Length")
+        public int length;
+
+        @Label("Checks")
+        public int checks;
+    }
+
+    @Name("glade.MergeCheck")
+    @Label("Merge Check")
+    @Category("GLADE")
+    public static class MergeCheckEvent extends Event {
+        @Label("Seed")
+        public int seed;
+
+        @Label("First Length")
+        public int firstLength;
+
+        @Label("Second Length")
+        public int secondLength;
+
+        @Label("Merged")
+        public boolean merged;
+    }
+
+    // Bucket i counts values in [2^(i-1), 2^i), and bucket 0 counts zero.
+    public static class Histogram {
+        private static final int NUM_BUCKETS = 40;
+
+        private final long[] buckets = new long[NUM_BUCKETS];
+        private long count = 0;
+        private long sum = 0;
+
+        private synchronized void add(long value) {
+            int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+            this.buckets[bucket]++;
+            this.count++;
+            this.sum += value;
+        }
+
+        public synchronized long getCount() {
+            return this.count;
+        }
+
+        public synchronized long getSum() {
+            return this.sum;
+        }
+
+        public synchronized double getMean() {
+            return this.count == 0 ? 0.0 : (double) this.sum / this.count;
+        }
+
+        // upper bound of the bucket containing the given quantile
+        public synchronized long getQuantile(double quantile) {
+            long rank = (long) Math.ceil(quantile * this.count);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += this.buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        private synchronized String toJson() {
+            StringBuilder sb = new StringBuilder().append("{\"count\": ").append(this.count).append(", \"sum\": ").append(this.sum).append(", \"buckets\": [");
+            int last = NUM_BUCKETS - 1;
+            while (last > 0 && this.buckets[last] == 0) {
+                last--;
+            }
+            for (int i = 0; i <= last; i++) {
+                sb.append(i == 0 ? "" : ", ").append(this.buckets[i]);
+            }
+            return sb.append("]}").toString();
+        }
+    }
+
+    public static class PhaseStats {
+        private final Histogram lengths = new Histogram();
+        private final Histogram latencies = new Histogram();
+        private final Histogram accepts = new Histogram();
+
+        private void record(int length, boolean accept, long nanos) {
+            this.lengths.add(length);
+            this.latencies.add(nanos / 1000);
+            this.accepts.add(accept ? 1 : 0);
+        }
+
+        public long getCalls() {
+            return this.accepts.getCount();
+        }
+
+        public double getAcceptRatio() {
+            return this.accepts.getMean();
+        }
+
+        public Histogram getLengths() {
+            return this.lengths;
+        }
+
+        // latencies in microseconds
+        public Histogram getLatencies() {
+            return this.latencies;
+        }
+    }
+
+    // Oracle calls attributed to the (phase, seed) scope of the calling thread.
+    public static class Profile {
+        private final Map<Scope,PhaseStats> stats = new ConcurrentHashMap<>();
+
+        public void record(Scope scope, int length, boolean accept, long nanos) {
+            this.stats.computeIfAbsent(scope, s -> new PhaseStats()).record(length, accept, nanos);
+        }
+
+        public PhaseStats get(Phase phase, int seed) {
+            return this.stats.get(new Scope(phase, seed));
+        }
+
+        public List<Scope> getScopes() {
+            List<Scope> scopes = new ArrayList<>(this.stats.keySet());
+            scopes.sort(Comparator.<Scope>comparingInt(scope -> scope.seed).thenComparing(scope -> scope.phase));
+            return scopes;
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("[");
+            boolean isFirst = true;
+            for (Scope scope : this.getScopes()) {
+                PhaseStats stats = this.stats.get(scope);
+                sb.append(isFirst ? "\n" : ",\n");
+                sb.append("  {\"phase\": \"").append(scope.phase).append("\", \"seed\": ").append(scope.seed);
+                sb.append(", \"calls\": ").append(stats.getCalls());
+                sb.append(", \"acceptRatio\": ").append(stats.getAcceptRatio());
+                sb.append(", \"length\": ").append(stats.lengths.toJson());
+                sb.append(", \"latencyMicros\": ").append(stats.latencies.toJson()).append("}");
+                isFirst = false;
+            }
+            return sb.append(isFirst ? "]" : "\n]").toString();
+        }
+
+        public String toCsv() {
+            StringBuilder sb = new StringBuilder("phase,seed,calls,acceptRatio,meanLength,maxLength,totalMillis,meanLatencyMicros,p50LatencyMicros,p99LatencyMicros\n");
+            for (Scope scope : this.getScopes()) {
+                PhaseStats stats = this.stats.get(scope);
+                sb.append(scope.phase).append(",").append(scope.seed).append(",").append(stats.getCalls());
+                sb.append(",").append(stats.getAcceptRatio());
+                sb.append(",").append(stats.lengths.getMean()).append(",").append(stats.lengths.getQuantile(1.0));
+                sb.append(",").append(stats.latencies.getSum() / 1000).append(",").append(stats.latencies.getMean());
+                sb.append(",").append(stats.latencies.getQuantile(0.5)).append(",").append(stats.latencies.getQuantile(0.99)).append("\n");
+            }
+            return sb.toString();
+        }
+
+        // writes CSV if the filename ends in .csv, and JSON otherwise
+        public void write(String filename) {
+            ShellUtils.write(filename.endsWith(".csv") ? this.toCsv() : this.toJson(), filename);
+        }
+    }
+
+    // Wrap the oracle that actually executes queries (i.e., inside any cache or concurrent
+    // decorators), so that each execution is timed individually.
+    public static class ProfiledDiscriminativeOracle implements VerdictDiscriminativeOracle, OracleDecorator {
+        private final Predicate<String> oracle;
+        private final Profile profile;
+
+        public ProfiledDiscriminativeOracle(Predicate<String> oracle, Profile profile) {
+            this.oracle = oracle;
+            this.profile = profile;
+        }
+
+        public ProfiledDiscriminativeOracle(Predicate<String> oracle) {
+            this(oracle, new Profile());
+        }
+
+        public Profile getProfile() {
+            return this.profile;
+        }
+
+        @Override
+        public Predicate<String> getOracle() {
+            return this.oracle;
+        }
+
+        @Override
+        public Verdict getVerdict(String query) {
+            long time = System.nanoTime();
+            Verdict result = OracleUtils.getVerdict(this.oracle, query);
+            this.profile.record(getScope(), query.length(), result == Verdict.ACCEPT, System.nanoTime() - time);
+            return result;
+        }
+
+        @Override
+        public Verdict getVerdict(SegmentedQuery query) {
+            long time = System.nanoTime();
+            Verdict result = OracleUtils.getVerdict(this.oracle, query);
+            this.profile.record(getScope(), query.length(), result == Verdict.ACCEPT, System.nanoTime() - time);
+            return result;
+        }
+    }
+}
@@ -14,27 +14,77 @@
 
 package glade.util;
 
-import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.ConcurrentOracle;
 import glade.util.OracleUtils.Oracle;
+import glade.util.OracleUtils.OracleStore;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.OracleUtils.Verdict;
+import glade.util.OracleUtils.VerdictDiscriminativeOracle;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.concurrent.Callable;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 public class ShellUtils {
+    static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "glade-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public static void delete(String filename) {
         new File(filename).delete();
     }
 
+    // deletes the file, or the directory and everything in it (links are deleted, not followed)
+    public static void deleteAll(File file) {
+        if (Files.isDirectory(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    deleteAll(child);
+                }
+            }
+        }
+        file.delete();
+    }
+
     public static void write(String query, File file) {
         file.delete();
         try {
@@ -50,6 +100,41 @@ public class ShellUtils {
         write(query, new File(filename));
     }
 
+    public static int getRemaining(ByteBuffer[] buffers) {
+        int remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    // fresh views of the buffers, so that the same query can be written again
+    static ByteBuffer[] duplicate(ByteBuffer[] buffers) {
+        ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            duplicates[i] = buffers[i].duplicate();
+        }
+        return duplicates;
+    }
+
+    // gathering write of all the buffers
+    public static void write(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        int offset = 0;
+        while (offset < buffers.length) {
+            channel.write(buffers, offset, buffers.length - offset);
+            while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+    }
+
+    // leaves the buffers' positions unchanged
+    public static void write(OutputStream output, ByteBuffer[] buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+    }
+
     public static String read(InputStream input) {
         try {
             StringBuilder result = new StringBuilder();
@@ -65,47 +150,292 @@ public class ShellUtils {
         }
     }
 
-    private static Process executeNoWait(String command) {
-        try {
-            String[] shellCommand = {"/bin/sh", "-c", command};
-            return Runtime.getRuntime().exec(shellCommand);
-        } catch (Exception e) {
-            throw new RuntimeException("Error executing command: " + command, e);
+    // matches the \s character class used by ExecuteDiscriminativeOracle
+    private static boolean isSpace(int b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    // returns as soon as the first non-whitespace byte is seen, leaving the rest of the stream unread
+    public static boolean isWhitespace(InputStream input) throws IOException {
+        byte[] buffer = new byte[512];
+        int length;
+        while ((length = input.read(buffer)) != -1) {
+            for (int i = 0; i < length; i++) {
+                if (!isSpace(buffer[i])) {
+                    return false;
+                }
+            }
         }
+        return true;
     }
 
-    public static String executeForStream(final String command, final boolean isError, long timeoutMillis) {
-        final Process process = executeNoWait(command);
-        Callable<String> exec = () -> {
-            String result = read(isError ? process.getErrorStream() : process.getInputStream());
-            try {
-                process.waitFor();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Error executing command: " + command, e);
+    // Kills the process and everything it spawned; descendants are collected first, since they are
+    // reparented (and no longer reachable from the process) once it exits.
+    public static void destroy(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    // Deadline for one process on the shared timeout scheduler: when it expires, the whole process
+    // tree is killed, which makes any blocked reads of its output return.
+    private static class Deadline implements AutoCloseable {
+        private final ScheduledFuture<?> future;
+        private final AtomicBoolean isExpired = new AtomicBoolean(false);
+
+        private Deadline(final Process process, long timeoutMillis) {
+            this.future = timeoutMillis == -1 ? null : TIMEOUTS.schedule(() -> {
+                this.isExpired.set(true);
+                destroy(process);
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private boolean isExpired() {
+            return this.isExpired.get();
+        }
+
+        @Override
+        public void close() {
+            if (this.future != null) {
+                this.future.cancel(false);
             }
+        }
+    }
+
+    // Chooses per-query deadlines for one oracle. A query that times out is re-run once under the
+    // relaxed deadline (when that is longer), and only then reported as a timeout.
+    public static abstract class TimeoutPolicy {
+        private final AtomicLong numRechecks = new AtomicLong();
+        private final AtomicLong numTimeouts = new AtomicLong();
+
+        public abstract long getTimeoutMillis();
+
+        public abstract long getRelaxedTimeoutMillis();
+
+        protected abstract void record(long millis);
+
+        private static boolean isLonger(long timeoutMillis, long otherMillis) {
+            return otherMillis != -1 && (timeoutMillis == -1 || timeoutMillis > otherMillis);
+        }
+
+        public <T> T execute(LongFunction<T> execute, Predicate<T> isTimeout) {
+            long timeoutMillis = this.getTimeoutMillis();
+            long time = System.nanoTime();
+            T result = execute.apply(timeoutMillis);
+            if (isTimeout.test(result)) {
+                long relaxedMillis = this.getRelaxedTimeoutMillis();
+                if (!isLonger(relaxedMillis, timeoutMillis)) {
+                    this.numTimeouts.incrementAndGet();
+                    return result;
+                }
+                this.numRechecks.incrementAndGet();
+                time = System.nanoTime();
+                result = execute.apply(relaxedMillis);
+                if (isTimeout.test(result)) {
+                    this.numTimeouts.incrementAndGet();
+                    return result;
+                }
+            }
+            this.record((System.nanoTime() - time) / 1000000);
             return result;
-        };
-        if (timeoutMillis == -1) {
-            try {
-                return exec.call();
-            } catch (Exception e) {
-                throw new RuntimeException("Error executing command: " + command, e);
-            }
-        } else {
-            final ExecutorService executor = Executors.newSingleThreadExecutor();
-            final Future<String> future = executor.submit(exec);
-            executor.shutdown();
-            String result;
+        }
+
+        public long getNumRechecks() {
+            return this.numRechecks.get();
+        }
+
+        // number of verdicts that were decided by a timeout (after any recheck)
+        public long getNumTimeouts() {
+            return this.numTimeouts.get();
+        }
+
+        @Override
+        public String toString() {
+            return "timeout: " + this.getTimeoutMillis() + "ms, rechecks: " + this.getNumRechecks() + ", timeouts: " + this.getNumTimeouts();
+        }
+    }
+
+    public static class FixedTimeoutPolicy extends TimeoutPolicy {
+        private final long timeoutMillis;
+
+        // -1 means no timeout
+        public FixedTimeoutPolicy(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public long getTimeoutMillis() {
+            return this.timeoutMillis;
+        }
+
+        @Override
+        public long getRelaxedTimeoutMillis() {
+            return this.timeoutMillis;
+        }
+
+        @Override
+        protected void record(long millis) {
+        }
+    }
+
+    // Derives the deadline from a high percentile of the latencies of recent successful queries,
+    // times a safety factor, clamped to [minMillis, maxMillis]. Until enough samples have been seen,
+    // and for rechecks, the deadline is maxMillis.
+    public static class AdaptiveTimeoutPolicy extends TimeoutPolicy {
+        private static final int MIN_SAMPLES = 20;
+
+        private final long[] window;
+        private final double percentile;
+        private final double safetyFactor;
+        private final long minMillis;
+        private final long maxMillis;
+        private int numSamples = 0;
+        private int numStale = 0;
+        private long timeoutMillis;
+
+        public AdaptiveTimeoutPolicy(int windowSize, double percentile, double safetyFactor, long minMillis, long maxMillis) {
+            if (windowSize < MIN_SAMPLES || percentile <= 0.0 || percentile > 1.0 || safetyFactor < 1.0 || minMillis < 1 || maxMillis < minMillis) {
+                throw new IllegalArgumentException("Invalid adaptive timeout parameters!");
+            }
+            this.window = new long[windowSize];
+            this.percentile = percentile;
+            this.safetyFactor = safetyFactor;
+            this.minMillis = minMillis;
+            this.maxMillis = maxMillis;
+            this.timeoutMillis = maxMillis;
+        }
+
+        public AdaptiveTimeoutPolicy(long maxMillis) {
+            this(1000, 0.99, 4.0, Math.min(100, maxMillis), maxMillis);
+        }
+
+        @Override
+        public synchronized long getTimeoutMillis() {
+            return this.timeoutMillis;
+        }
+
+        @Override
+        public long getRelaxedTimeoutMillis() {
+            return this.maxMillis;
+        }
+
+        @Override
+        protected synchronized void record(long millis) {
+            this.window[this.numSamples % this.window.length] = millis;
+            this.numSamples++;
+            this.numStale++;
+            // re-deriving the percentile means sorting the window, so only do it every so often
+            if (this.numSamples >= MIN_SAMPLES && this.numStale >= Math.max(1, Math.min(this.numSamples, this.window.length) / 10)) {
+                this.numStale = 0;
+                long[] samples = Arrays.copyOf(this.window, Math.min(this.numSamples, this.window.length));
+                Arrays.sort(samples);
+                long latency = samples[Math.min(samples.length - 1, (int) Math.ceil(this.percentile * samples.length) - 1)];
+                this.timeoutMillis = Math.max(this.minMillis, Math.min(this.maxMillis, (long) Math.ceil(latency * this.safetyFactor)));
+            }
+        }
+    }
+
+    public static class ShellResult {
+        public final String output;
+        public final int exitCode;
+        public final boolean isTimeout;
+
+        private ShellResult(String output, int exitCode, boolean isTimeout) {
+            this.output = output;
+            this.exitCode = exitCode;
+            this.isTimeout = isTimeout;
+        }
+
+        private static ShellResult timeout() {
+            return new ShellResult("Timeout!", -1, true);
+        }
+    }
+
+    // only the stream that is read is piped back; the other one is discarded so it can never fill up
+    private static Process executeNoWait(String command, boolean readOutput, boolean readError) {
+        ProcessBuilder builder = new ProcessBuilder("/bin/sh", "-c", command);
+        if (!readOutput) {
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        }
+        if (!readError) {
+            builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        }
+        try {
+            return builder.start();
+        } catch (IOException e) {
+            throw new RuntimeException("Error executing command: " + command, e);
+        }
+    }
+
+    public static ShellResult executeForResult(final String command, final boolean isError, long timeoutMillis) {
+        final Process process = executeNoWait(command, !isError, isError);
+        try (Deadline deadline = new Deadline(process, timeoutMillis)) {
+            String output;
             try {
-                result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
-            } catch (Exception e) {
-                process.destroy();
-                result = "Timeout!";
+                output = read(isError ? process.getErrorStream() : process.getInputStream());
+            } catch (RuntimeException e) {
+                if (deadline.isExpired()) {
+                    return ShellResult.timeout();
+                }
+                throw e;
             }
-            if (!executor.isTerminated()) {
-                executor.shutdownNow();
+            int exitCode = process.waitFor();
+            return deadline.isExpired() ? ShellResult.timeout() : new ShellResult(output, exitCode, false);
+        } catch (InterruptedException e) {
+            destroy(process);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error executing command: " + command, e);
+        }
+    }
+
+    public static String executeForStream(final String command, final boolean isError, long timeoutMillis) {
+        return executeForResult(command, isError, timeoutMillis).output;
+    }
+
+    public enum VerdictMode {
+        // buffer the whole output and match it against \s*
+        BUFFERED,
+        // decide on the first non-whitespace output byte and kill the process at that point
+        STREAMING,
+        // accept exactly when the command exits with status 0, ignoring its output
+        EXIT_CODE
+    }
+
+    public interface VerdictOracle extends Oracle {
+        Verdict getVerdict(String query, VerdictMode mode);
+    }
+
+    public static Verdict executeForVerdict(final String command, final boolean isError, long timeoutMillis, VerdictMode mode) {
+        if (mode == VerdictMode.BUFFERED) {
+            ShellResult result = executeForResult(command, isError, timeoutMillis);
+            return result.isTimeout ? Verdict.TIMEOUT : ExecuteDiscriminativeOracle.SPACE.matcher(result.output).matches() ? Verdict.ACCEPT : Verdict.REJECT;
+        }
+        boolean isStreaming = mode == VerdictMode.STREAMING;
+        final Process process = executeNoWait(command, isStreaming && !isError, isStreaming && isError);
+        try (Deadline deadline = new Deadline(process, timeoutMillis)) {
+            boolean result;
+            if (isStreaming) {
+                try {
+                    result = isWhitespace(isError ? process.getErrorStream() : process.getInputStream());
+                } catch (IOException e) {
+                    if (deadline.isExpired()) {
+                        return Verdict.TIMEOUT;
+                    }
+                    destroy(process);
+                    throw new RuntimeException("Error reading program output stream!", e);
+                }
+                if (!result) {
+                    destroy(process);
+                } else {
+                    process.waitFor();
+                }
+            } else {
+                result = process.waitFor() == 0;
             }
-            return result;
+            return deadline.isExpired() ? Verdict.TIMEOUT : result ? Verdict.ACCEPT : Verdict.REJECT;
+        } catch (InterruptedException e) {
+            destroy(process);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error executing command: " + command, e);
         }
     }
 
@@ -120,43 +450,558 @@ public class ShellUtils {
         }
     }
 
-    public static class ShellOracle implements Oracle {
+    public static class ShellOracle implements VerdictOracle {
         private final String command;
         private final String filename;
         private final String auxFilename;
         private final boolean isError;
-        private final long timeoutMillis;
+        private final TimeoutPolicy timeout;
 
-        public ShellOracle(String filename, String auxFilename, String command, boolean isError, long timeoutMillis) {
+        public ShellOracle(String filename, String auxFilename, String command, boolean isError, TimeoutPolicy timeout) {
             this.filename = filename;
             this.auxFilename = auxFilename;
             this.command = command;
             this.isError = isError;
-            this.timeoutMillis = timeoutMillis;
+            this.timeout = timeout;
+        }
+
+        public ShellOracle(String filename, String auxFilename, String command, boolean isError, long timeoutMillis) {
+            this(filename, auxFilename, command, isError, new FixedTimeoutPolicy(timeoutMillis));
         }
 
         @Override
         public String apply(String query) {
             write("", this.auxFilename);
             write(query, this.filename);
-            String result = ShellUtils.executeForStream(this.command, this.isError, this.timeoutMillis);
+            ShellResult result = this.timeout.execute(timeoutMillis -> ShellUtils.executeForResult(this.command, this.isError, timeoutMillis), r -> r.isTimeout);
+            delete(this.auxFilename);
+            delete(this.filename);
+            return result.output;
+        }
+
+        @Override
+        public Verdict getVerdict(String query, VerdictMode mode) {
+            write("", this.auxFilename);
+            write(query, this.filename);
+            Verdict result = this.timeout.execute(timeoutMillis -> ShellUtils.executeForVerdict(this.command, this.isError, timeoutMillis, mode), r -> r == Verdict.TIMEOUT);
             delete(this.auxFilename);
             delete(this.filename);
             return result;
         }
+
+        public TimeoutPolicy getTimeoutPolicy() {
+            return this.timeout;
+        }
+    }
+
+    public static class PooledShellOracle implements ConcurrentOracle, VerdictOracle, Closeable {
+        private static class Slot {
+            private final File directory;
+            private final String filename;
+            private final String auxFilename;
+            private final String command;
+
+            private Slot(File directory, String filename, String auxFilename, String command) {
+                this.directory = directory;
+                this.filename = filename;
+                this.auxFilename = auxFilename;
+                this.command = command;
+            }
+        }
+
+        private final List<Slot> allSlots = new ArrayList<>();
+        private final BlockingQueue<Slot> slots;
+        private final boolean isError;
+        private final TimeoutPolicy timeout;
+
+        public PooledShellOracle(int concurrency, String filename, String auxFilename, CommandFactory commandFactory, String exePath, boolean isError, long timeoutMillis) {
+            this(concurrency, filename, auxFilename, commandFactory, exePath, isError, new FixedTimeoutPolicy(timeoutMillis));
+        }
+
+        // filename and auxFilename are names relative to the scratch directory of each worker slot;
+        // the command may write other files there too, and close() deletes the whole directory
+        public PooledShellOracle(int concurrency, String filename, String auxFilename, CommandFactory commandFactory, String exePath, boolean isError, TimeoutPolicy timeout) {
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+            }
+            this.slots = new ArrayBlockingQueue<>(concurrency);
+            this.isError = isError;
+            this.timeout = timeout;
+            for (int i = 0; i < concurrency; i++) {
+                File directory;
+                try {
+                    directory = Files.createTempDirectory("glade-worker" + i + '-').toFile();
+                } catch (IOException e) {
+                    this.close();
+                    throw new RuntimeException("Error creating worker directory!", e);
+                }
+                String slotFilename = new File(directory, filename).getAbsolutePath();
+                String slotAuxFilename = new File(directory, auxFilename).getAbsolutePath();
+                Slot slot = new Slot(directory, slotFilename, slotAuxFilename, commandFactory.getCommand(slotFilename, slotAuxFilename, exePath));
+                this.allSlots.add(slot);
+                this.slots.add(slot);
+            }
+        }
+
+        @Override
+        public int getConcurrency() {
+            return this.allSlots.size();
+        }
+
+        private Slot take() {
+            try {
+                return this.slots.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for worker slot!", e);
+            }
+        }
+
+        @Override
+        public String apply(String query) {
+            Slot slot = this.take();
+            try {
+                write("", slot.auxFilename);
+                write(query, slot.filename);
+                ShellResult result = this.timeout.execute(timeoutMillis -> ShellUtils.executeForResult(slot.command, this.isError, timeoutMillis), r -> r.isTimeout);
+                delete(slot.auxFilename);
+                delete(slot.filename);
+                return result.output;
+            } finally {
+                this.slots.add(slot);
+            }
+        }
+
+        @Override
+        public Verdict getVerdict(String query, VerdictMode mode) {
+            Slot slot = this.take();
+            try {
+                write("", slot.auxFilename);
+                write(query, slot.filename);
+                Verdict result = this.timeout.execute(timeoutMillis -> ShellUtils.executeForVerdict(slot.command, this.isError, timeoutMillis, mode), r -> r == Verdict.TIMEOUT);
+                delete(slot.auxFilename);
+                delete(slot.filename);
+                return result;
+            } finally {
+                this.slots.add(slot);
+            }
+        }
+
+        public TimeoutPolicy getTimeoutPolicy() {
+            return this.timeout;
+        }
+
+        @Override
+        public void close() {
+            for (Slot slot : this.allSlots) {
+                deleteAll(slot.directory);
+            }
+        }
     }
 
-    public static class ExecuteDiscriminativeOracle implements DiscriminativeOracle {
+    public static class ExecuteDiscriminativeOracle implements VerdictDiscriminativeOracle {
         private static final Pattern SPACE = Pattern.compile("\\s*");
         private final Oracle oracle;
+        private final VerdictMode mode;
+        private final OracleStore store;
+        private final AtomicLong numTimeouts = new AtomicLong();
 
-        public ExecuteDiscriminativeOracle(Oracle oracle) {
+        // modes other than BUFFERED need an oracle that can decide verdicts itself, e.g. a ShellOracle
+        public ExecuteDiscriminativeOracle(Oracle oracle, VerdictMode mode, OracleStore store) {
+            if (mode != VerdictMode.BUFFERED && !(oracle instanceof VerdictOracle)) {
+                throw new IllegalArgumentException("Oracle does not support verdict mode " + mode + ": " + oracle.getClass().getName());
+            }
             this.oracle = oracle;
+            this.mode = mode;
+            this.store = store;
+        }
+
+        public ExecuteDiscriminativeOracle(Oracle oracle, VerdictMode mode) {
+            this(oracle, mode, null);
+        }
+
+        public ExecuteDiscriminativeOracle(Oracle oracle, OracleStore store) {
+            this(oracle, VerdictMode.BUFFERED, store);
+        }
+
+        public ExecuteDiscriminativeOracle(Oracle oracle) {
+            this(oracle, VerdictMode.BUFFERED, null);
+        }
+
+        private Verdict execute(String query) {
+            if (!(this.oracle instanceof VerdictOracle)) {
+                return SPACE.matcher(this.oracle.apply(query)).matches() ? Verdict.ACCEPT : Verdict.REJECT;
+            }
+            Verdict verdict = ((VerdictOracle) this.oracle).getVerdict(query, this.mode);
+            if (verdict == Verdict.TIMEOUT) {
+                this.numTimeouts.incrementAndGet();
+            }
+            return verdict;
+        }
+
+        // timeouts are rejected, but never recorded in the store
+        @Override
+        public Verdict getVerdict(String query) {
+            return this.store == null ? this.execute(query) : this.store.getVerdict(query, this::execute);
         }
 
         @Override
         public boolean test(String query) {
-            return SPACE.matcher(this.oracle.apply(query)).matches();
+            return this.getVerdict(query) == Verdict.ACCEPT;
+        }
+
+        public long getNumTimeouts() {
+            return this.numTimeouts.get();
+        }
+    }
+
+    public enum QueryInput {
+        STDIN, FILE
+    }
+
+    public enum OutputVerdict {
+        EXIT_CODE, EMPTY_STDOUT, EMPTY_STDERR
+    }
+
+    // Runs the target directly from an argv list, with no /bin/sh and no per-query file creation.
+    // In FILE mode, arguments equal to QUERY_FILE_ARGUMENT are replaced by a per-thread file that is
+    // rewritten in place for every query (kept in /dev/shm when available).
+    public static class ExecDiscriminativeOracle implements VerdictDiscriminativeOracle, Closeable {
+        public static final String QUERY_FILE_ARGUMENT = "@@";
+        // queries up to this size fit in the pipe buffer, so writing them can never block on the target
+        private static final int PIPE_BUFFER_SIZE = 16384;
+        private static final ExecutorService WRITERS = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "glade-stdin");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final List<String> command;
+        private final QueryInput input;
+        private final OutputVerdict verdict;
+        private final TimeoutPolicy timeout;
+        private final Path directory;
+        private final ThreadLocal<Path> queryFile;
+
+        public ExecDiscriminativeOracle(List<String> command, QueryInput input, OutputVerdict verdict, long timeoutMillis) {
+            this(command, input, verdict, new FixedTimeoutPolicy(timeoutMillis));
+        }
+
+        public ExecDiscriminativeOracle(List<String> command, QueryInput input, OutputVerdict verdict, TimeoutPolicy timeout) {
+            this.command = new ArrayList<>(command);
+            this.input = input;
+            this.verdict = verdict;
+            this.timeout = timeout;
+            if (input == QueryInput.FILE) {
+                if (!this.command.contains(QUERY_FILE_ARGUMENT)) {
+                    throw new IllegalArgumentException("Command has no " + QUERY_FILE_ARGUMENT + " argument: " + command);
+                }
+                File shm = new File("/dev/shm");
+                try {
+                    this.directory = shm.isDirectory() && shm.canWrite() ? Files.createTempDirectory(shm.toPath(), "glade-exec") : Files.createTempDirectory("glade-exec");
+                } catch (IOException e) {
+                    throw new RuntimeException("Error creating query directory!", e);
+                }
+                this.queryFile = ThreadLocal.withInitial(() -> this.directory.resolve("query" + Thread.currentThread().getId()));
+            } else {
+                this.directory = null;
+                this.queryFile = null;
+            }
+        }
+
+        private List<String> getCommand(Path file) {
+            List<String> command = new ArrayList<>(this.command.size());
+            for (String argument : this.command) {
+                command.add(argument.equals(QUERY_FILE_ARGUMENT) ? file.toString() : argument);
+            }
+            return command;
+        }
+
+        private Process start(ByteBuffer[] query) throws IOException {
+            ProcessBuilder builder;
+            if (this.input == QueryInput.FILE) {
+                Path file = this.queryFile.get();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    write(channel, duplicate(query));
+                }
+                builder = new ProcessBuilder(this.getCommand(file)).redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+            } else {
+                builder = new ProcessBuilder(this.command);
+            }
+            if (this.verdict != OutputVerdict.EMPTY_STDOUT) {
+                builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            }
+            if (this.verdict != OutputVerdict.EMPTY_STDERR) {
+                builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            }
+            return builder.start();
+        }
+
+        private static void writeInput(Process process, ByteBuffer[] query) {
+            try (OutputStream output = process.getOutputStream()) {
+                write(output, query);
+            } catch (IOException e) {
+                // the target exited without reading all of its input
+            }
+        }
+
+        private boolean execute(Process process) throws IOException, InterruptedException {
+            if (this.verdict == OutputVerdict.EXIT_CODE) {
+                return process.waitFor() == 0;
+            }
+            if (!isWhitespace(this.verdict == OutputVerdict.EMPTY_STDOUT ? process.getInputStream() : process.getErrorStream())) {
+                destroy(process);
+                return false;
+            }
+            process.waitFor();
+            return true;
+        }
+
+        private Verdict execute(ByteBuffer[] query, long timeoutMillis) {
+            final Process process;
+            try {
+                process = this.start(query);
+            } catch (IOException e) {
+                throw new RuntimeException("Error executing command: " + this.command, e);
+            }
+            // the deadline is armed before the query is written, so that a target that never reads
+            // its input is killed (which makes the write fail) rather than blocking us forever
+            try (Deadline deadline = new Deadline(process, timeoutMillis)) {
+                if (this.input == QueryInput.STDIN) {
+                    if (getRemaining(query) <= PIPE_BUFFER_SIZE) {
+                        writeInput(process, query);
+                    } else {
+                        WRITERS.execute(() -> writeInput(process, query));
+                    }
+                }
+                boolean result;
+                try {
+                    result = this.execute(process);
+                } catch (IOException e) {
+                    if (deadline.isExpired()) {
+                        return Verdict.TIMEOUT;
+                    }
+                    destroy(process);
+                    throw new RuntimeException("Error reading program output stream!", e);
+                }
+                return deadline.isExpired() ? Verdict.TIMEOUT : result ? Verdict.ACCEPT : Verdict.REJECT;
+            } catch (InterruptedException e) {
+                destroy(process);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Error executing command: " + this.command, e);
+            }
+        }
+
+        private Verdict getVerdict(ByteBuffer[] query) {
+            return this.timeout.execute(timeoutMillis -> this.execute(query, timeoutMillis), r -> r == Verdict.TIMEOUT);
+        }
+
+        @Override
+        public Verdict getVerdict(String query) {
+            return this.getVerdict(new ByteBuffer[]{ByteBuffer.wrap(query.getBytes(StandardCharsets.UTF_8))});
+        }
+
+        // the segments are written out with a gathering write (FILE) or one after another (STDIN)
+        @Override
+        public Verdict getVerdict(SegmentedQuery query) {
+            return this.getVerdict(query.encode());
+        }
+
+        @Override
+        public boolean test(String query) {
+            return this.getVerdict(query) == Verdict.ACCEPT;
+        }
+
+        @Override
+        public boolean test(SegmentedQuery query) {
+            return this.getVerdict(query) == Verdict.ACCEPT;
+        }
+
+        public TimeoutPolicy getTimeoutPolicy() {
+            return this.timeout;
+        }
+
+        @Override
+        public void close() {
+            if (this.directory == null) {
+                return;
+            }
+            File[] files = this.directory.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            this.directory.toFile().delete();
+        }
+    }
+
+    // Keeps one target process (usually an OracleHarness) alive and exchanges queries with it: each
+    // query is sent as a 4-byte big-endian length followed by its UTF-8 bytes, and the process answers
+    // with a single byte, 1 for accept and 0 for reject.
+    public static class ProcessDiscriminativeOracle implements VerdictDiscriminativeOracle, Closeable {
+        private final List<String> command;
+        private final long timeoutMillis;
+        private final int maxQueriesPerProcess;
+        private Process process = null;
+        private DataOutputStream output = null;
+        private InputStream input = null;
+        private int numProcessQueries = 0;
+        private int numStarts = 0;
+        private int numTimeouts = 0;
+        private int numCrashes = 0;
+
+        public ProcessDiscriminativeOracle(List<String> command, long timeoutMillis, int maxQueriesPerProcess) {
+            if (maxQueriesPerProcess < 1) {
+                throw new IllegalArgumentException("Invalid queries per process: " + maxQueriesPerProcess);
+            }
+            this.command = new ArrayList<>(command);
+            this.timeoutMillis = timeoutMillis;
+            this.maxQueriesPerProcess = maxQueriesPerProcess;
+        }
+
+        private void start() {
+            try {
+                this.process = new ProcessBuilder(this.command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            } catch (IOException e) {
+                throw new RuntimeException("Error executing command: " + this.command, e);
+            }
+            this.output = new DataOutputStream(new BufferedOutputStream(this.process.getOutputStream()));
+            this.input = this.process.getInputStream();
+            this.numProcessQueries = 0;
+            this.numStarts++;
+        }
+
+        private void stop() {
+            if (this.process == null) {
+                return;
+            }
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                // the process is being discarded anyway
+            }
+            destroy(this.process);
+            this.process = null;
+            this.output = null;
+            this.input = null;
+        }
+
+        private int execute(ByteBuffer[] query) {
+            try (Deadline deadline = new Deadline(this.process, this.timeoutMillis)) {
+                int verdict;
+                try {
+                    this.output.writeInt(getRemaining(query));
+                    write(this.output, query);
+                    this.output.flush();
+                    verdict = this.input.read();
+                } catch (IOException e) {
+                    verdict = -1;
+                }
+                this.numProcessQueries++;
+                return deadline.isExpired() ? -2 : verdict;
+            }
+        }
+
+        @Override
+        public Verdict getVerdict(String query) {
+            return this.getVerdict(new ByteBuffer[]{ByteBuffer.wrap(query.getBytes(StandardCharsets.UTF_8))}, query);
+        }
+
+        @Override
+        public Verdict getVerdict(SegmentedQuery query) {
+            return this.getVerdict(query.encode(), query);
+        }
+
+        private synchronized Verdict getVerdict(ByteBuffer[] bytes, CharSequence query) {
+            for (int attempt = 0; ; attempt++) {
+                if (this.process != null && this.numProcessQueries >= this.maxQueriesPerProcess) {
+                    this.stop();
+                }
+                if (this.process == null) {
+                    this.start();
+                }
+                int verdict = this.execute(bytes);
+                if (verdict == 0 || verdict == 1) {
+                    return verdict == 1 ? Verdict.ACCEPT : Verdict.REJECT;
+                }
+                this.stop();
+                if (verdict == -2) {
+                    this.numTimeouts++;
+                    return Verdict.TIMEOUT;
+                }
+                this.numCrashes++;
+                // a query that also crashes a fresh process is rejected, like a non-zero exit of an
+                // exec target; only a process that cannot be started is an error
+                if (attempt >= 1) {
+                    return Verdict.REJECT;
+                }
+            }
+        }
+
+        public synchronized int getNumStarts() {
+            return this.numStarts;
+        }
+
+        public synchronized int getNumTimeouts() {
+            return this.numTimeouts;
+        }
+
+        public synchronized int getNumCrashes() {
+            return this.numCrashes;
+        }
+
+        @Override
+        public synchronized void close() {
+            this.stop();
+        }
+    }
+
+    // Stand-in target for ProcessDiscriminativeOracle. Usage:
+    //   OracleHarness -class <Predicate<String> class name>
+    //   OracleHarness -command <command> <filename> <auxFilename> [-error]
+    // The first form answers queries in process; the second runs the command on each query through a
+    // ShellOracle, which is useful for testing the protocol against the existing example targets.
+    public static class OracleHarness {
+        // Answers length-prefixed queries in order. Responses are flushed once no further (pipelined)
+        // query is buffered, so a batch of queries is answered with a single write.
+        public static void serve(Predicate<String> oracle, InputStream input, OutputStream output) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+            OutputStream out = new BufferedOutputStream(output);
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    out.flush();
+                    return;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                out.write(oracle.test(new String(bytes, StandardCharsets.UTF_8)) ? 1 : 0);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        static Predicate<String> getOracle(String[] args) throws ReflectiveOperationException {
+            if (args.length == 2 && args[0].equals("-class")) {
+                return (Predicate<String>) Class.forName(args[1]).getDeclaredConstructor().newInstance();
+            } else if ((args.length == 4 || args.length == 5) && args[0].equals("-command")) {
+                boolean isError = args.length == 5 && args[4].equals("-error");
+                return new ExecuteDiscriminativeOracle(new ShellOracle(args[2], args[3], args[1], isError, -1));
+            } else {
+                throw new IllegalArgumentException("Usage: OracleHarness -class <class> | -command <command> <filename> <auxFilename> [-error]");
+            }
+        }
+
+        public static void main(String[] args) throws Exception {
+            OutputStream output = new FileOutputStream(FileDescriptor.out);
+            // keep stray prints by the oracle off the protocol stream
+            System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+            serve(getOracle(args), System.in, output);
         }
     }
 }
@@ -0,0 +1,452 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package glade.util;
+
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.ShellUtils.OracleHarness;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// Oracles served over a local TCP or Unix-domain socket, using the OracleHarness protocol: each
+// query is a 4-byte big-endian length followed by UTF-8 bytes, and each response is one byte
+// (1 = accept). Responses come back in query order, so queries can be pipelined.
+public class SocketUtils {
+    // Deadline for one connect or batch on the shared timeout scheduler: when it expires, the
+    // channel is closed, which makes any blocked connect, write or read throw. Unix-domain channels
+    // have no socket to set a read timeout on, so this works the same way for both address kinds.
+    private static class Deadline implements AutoCloseable {
+        private final ScheduledFuture<?> future;
+        private final AtomicBoolean isExpired = new AtomicBoolean(false);
+
+        private Deadline(final SocketChannel channel, long timeoutMillis) {
+            this.future = timeoutMillis == -1 ? null : ShellUtils.TIMEOUTS.schedule(() -> {
+                this.isExpired.set(true);
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.err(e);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private boolean isExpired() {
+            return this.isExpired.get();
+        }
+
+        @Override
+        public void close() {
+            if (this.future != null) {
+                this.future.cancel(false);
+            }
+        }
+    }
+
+    private static class Connection implements Closeable {
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final long timeoutMillis;
+
+        private Connection(SocketAddress address, long timeoutMillis) throws IOException {
+            this.channel = address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+            this.timeoutMillis = timeoutMillis;
+            try (Deadline deadline = new Deadline(this.channel, timeoutMillis)) {
+                try {
+                    this.channel.connect(address);
+                } catch (IOException e) {
+                    this.close();
+                    throw deadline.isExpired() ? this.getTimeout("connect", e) : e;
+                }
+            }
+            if (address instanceof InetSocketAddress) {
+                this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            }
+            this.in = new BufferedInputStream(Channels.newInputStream(this.channel));
+        }
+
+        private SocketTimeoutException getTimeout(String operation, IOException cause) {
+            SocketTimeoutException timeout = new SocketTimeoutException("Oracle server did not " + operation + " within " + this.timeoutMillis + " ms!");
+            timeout.initCause(cause);
+            return timeout;
+        }
+
+        private boolean isOpen() {
+            return this.channel.isOpen();
+        }
+
+        private boolean read() throws IOException {
+            int response = this.in.read();
+            if (response == -1) {
+                throw new IOException("Oracle server closed the connection!");
+            }
+            return response == 1;
+        }
+
+        // the deadline covers the whole batch, so a server that stops responding fails the batch
+        // like a dropped connection
+        private BitSet testAll(List<ByteBuffer[]> queries) throws IOException {
+            try (Deadline deadline = new Deadline(this.channel, this.timeoutMillis)) {
+                try {
+                    return this.testAllUntimed(queries);
+                } catch (IOException e) {
+                    throw deadline.isExpired() ? this.getTimeout("respond", e) : e;
+                }
+            }
+        }
+
+        // writes all the queries, each a length followed by its segments, in one gathering write
+        // before reading any response
+        private BitSet testAllUntimed(List<ByteBuffer[]> queries) throws IOException {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            for (ByteBuffer[] query : queries) {
+                buffers.add(ByteBuffer.allocate(4).putInt(0, ShellUtils.getRemaining(query)));
+                for (ByteBuffer segment : query) {
+                    buffers.add(segment.duplicate());
+                }
+            }
+            ShellUtils.write(this.channel, buffers.toArray(new ByteBuffer[0]));
+            BitSet results = new BitSet(queries.size());
+            for (int i = 0; i < queries.size(); i++) {
+                if (this.read()) {
+                    results.set(i);
+                }
+            }
+            return results;
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                Log.err(e);
+            }
+        }
+    }
+
+    // Keeps up to maxConnections open connections to the server; each caller borrows one for the
+    // duration of a query or batch. A connection that fails is dropped, and the query or batch is
+    // retried once on a new connection. Callers wait for one of maxConnections permits, which are
+    // given back whether the connection is kept or dropped, so a waiting caller always gets to
+    // (re)connect once the server is back. A connect or batch that takes longer than timeoutMillis
+    // (-1 means no timeout) counts as a failed connection, so a hung server is retried once too.
+    public static class SocketDiscriminativeOracle implements DiscriminativeOracle, Closeable {
+        // bounds the number of responses outstanding on one connection
+        private static final int MAX_PIPELINE = 1024;
+        private static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+
+        private final SocketAddress address;
+        private final long timeoutMillis;
+        private final BlockingQueue<Connection> idle;
+        private final Semaphore permits;
+        private final AtomicLong numConnects = new AtomicLong();
+        private volatile boolean isClosed = false;
+
+        public SocketDiscriminativeOracle(SocketAddress address, int maxConnections, long timeoutMillis) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("Invalid number of connections: " + maxConnections);
+            }
+            if (timeoutMillis < 1 && timeoutMillis != -1) {
+                throw new IllegalArgumentException("Invalid timeout: " + timeoutMillis);
+            }
+            this.address = address;
+            this.timeoutMillis = timeoutMillis;
+            this.idle = new ArrayBlockingQueue<>(maxConnections);
+            this.permits = new Semaphore(maxConnections);
+        }
+
+        public SocketDiscriminativeOracle(SocketAddress address, int maxConnections) {
+            this(address, maxConnections, DEFAULT_TIMEOUT_MILLIS);
+        }
+
+        public SocketDiscriminativeOracle(SocketAddress address) {
+            this(address, Runtime.getRuntime().availableProcessors());
+        }
+
+        // connections are only opened when none is idle, so there are never more than there are
+        // permits
+        private Connection borrow() throws IOException {
+            try {
+                this.permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for a connection!", e);
+            }
+            Connection connection = this.idle.poll();
+            if (connection != null) {
+                return connection;
+            }
+            try {
+                this.numConnects.incrementAndGet();
+                return new Connection(this.address, this.timeoutMillis);
+            } catch (IOException e) {
+                this.permits.release();
+                throw e;
+            }
+        }
+
+        // a deadline that expired just after the last response has closed the connection
+        private void release(Connection connection) {
+            if (this.isClosed || !connection.isOpen() || !this.idle.offer(connection)) {
+                connection.close();
+            }
+            this.permits.release();
+        }
+
+        private void discard(Connection connection) {
+            connection.close();
+            this.permits.release();
+        }
+
+        private BitSet execute(List<ByteBuffer[]> queries) {
+            if (this.isClosed) {
+                throw new IllegalStateException("Oracle is closed!");
+            }
+            IOException failure = null;
+            for (int attempt = 0; attempt < 2; attempt++) {
+                Connection connection;
+                try {
+                    connection = this.borrow();
+                } catch (IOException e) {
+                    failure = e;
+                    continue;
+                }
+                try {
+                    BitSet results = connection.testAll(queries);
+                    this.release(connection);
+                    return results;
+                } catch (IOException e) {
+                    this.discard(connection);
+                    failure = e;
+                }
+            }
+            throw new RuntimeException("Error querying oracle server at " + this.address, failure);
+        }
+
+        private static ByteBuffer[] encode(String query) {
+            return new ByteBuffer[]{ByteBuffer.wrap(query.getBytes(StandardCharsets.UTF_8))};
+        }
+
+        @Override
+        public boolean test(String query) {
+            return this.execute(List.<ByteBuffer[]>of(encode(query))).get(0);
+        }
+
+        @Override
+        public boolean test(SegmentedQuery query) {
+            return this.execute(List.<ByteBuffer[]>of(query.encode())).get(0);
+        }
+
+        @Override
+        public BitSet testAll(List<String> queries) {
+            List<ByteBuffer[]> encoded = new ArrayList<>(queries.size());
+            for (String query : queries) {
+                encoded.add(encode(query));
+            }
+            return this.testAllEncoded(encoded);
+        }
+
+        @Override
+        public BitSet testAllSegments(List<SegmentedQuery> queries) {
+            List<ByteBuffer[]> encoded = new ArrayList<>(queries.size());
+            for (SegmentedQuery query : queries) {
+                encoded.add(query.encode());
+            }
+            return this.testAllEncoded(encoded);
+        }
+
+        private BitSet testAllEncoded(List<ByteBuffer[]> queries) {
+            if (queries.size() <= MAX_PIPELINE) {
+                return this.execute(queries);
+            }
+            BitSet results = new BitSet(queries.size());
+            for (int i = 0; i < queries.size(); i += MAX_PIPELINE) {
+                BitSet chunk = this.execute(queries.subList(i, Math.min(queries.size(), i + MAX_PIPELINE)));
+                for (int j = chunk.nextSetBit(0); j >= 0; j = chunk.nextSetBit(j + 1)) {
+                    results.set(i + j);
+                }
+            }
+            return results;
+        }
+
+        // the whole batch is pipelined, so this waits for every response rather than the first rejection
+        @Override
+        public boolean testAllPass(List<String> queries) {
+            return this.testAll(queries).cardinality() == queries.size();
+        }
+
+        @Override
+        public boolean testAllPassSegments(List<SegmentedQuery> queries) {
+            return this.testAllSegments(queries).cardinality() == queries.size();
+        }
+
+        public long getNumConnects() {
+            return this.numConnects.get();
+        }
+
+        @Override
+        public void close() {
+            this.isClosed = true;
+            Connection connection;
+            while ((connection = this.idle.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // Reference server: answers queries on each accepted connection with its own thread, so the
+    // oracle must be thread-safe.
+    public static class OracleServer implements Closeable {
+        private final Predicate<String> oracle;
+        private final ServerSocketChannel server;
+        private final SocketAddress address;
+        private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+        private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "glade-oracle-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        public OracleServer(Predicate<String> oracle, SocketAddress address) throws IOException {
+            this.oracle = oracle;
+            if (address instanceof UnixDomainSocketAddress) {
+                Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+                this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            } else {
+                this.server = ServerSocketChannel.open();
+            }
+            this.server.bind(address);
+            this.address = this.server.getLocalAddress();
+            this.executor.execute(this::accept);
+        }
+
+        // listens on an ephemeral loopback port
+        public OracleServer(Predicate<String> oracle) throws IOException {
+            this(oracle, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        public SocketAddress getAddress() {
+            return this.address;
+        }
+
+        private void accept() {
+            while (this.server.isOpen()) {
+                SocketChannel client;
+                try {
+                    client = this.server.accept();
+                } catch (IOException e) {
+                    if (this.server.isOpen()) {
+                        Log.err(e);
+                    }
+                    return;
+                }
+                this.clients.add(client);
+                this.executor.execute(() -> this.serve(client));
+            }
+        }
+
+        private void serve(SocketChannel client) {
+            try {
+                if (this.address instanceof InetSocketAddress) {
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                OracleHarness.serve(this.oracle, Channels.newInputStream(client), Channels.newOutputStream(client));
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                this.clients.remove(client);
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    Log.err(e);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.server.close();
+                for (SocketChannel client : new ArrayList<>(this.clients)) {
+                    client.close();
+                }
+                if (this.address instanceof UnixDomainSocketAddress) {
+                    Files.deleteIfExists(((UnixDomainSocketAddress) this.address).getPath());
+                }
+            } catch (IOException e) {
+                Log.err(e);
+            }
+            this.executor.shutdownNow();
+        }
+
+        // OracleServer (-port <port> | -unix <path>) (-class <class> | -command <command> <filename> <auxFilename> [-error])
+        public static void main(String[] args) throws Exception {
+            if (args.length < 4 || !(args[0].equals("-port") || args[0].equals("-unix"))) {
+                throw new IllegalArgumentException("Usage: OracleServer (-port <port> | -unix <path>) (-class <class> | -command <command> <filename> <auxFilename> [-error])");
+            }
+            SocketAddress address = args[0].equals("-port")
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]))
+                    : UnixDomainSocketAddress.of(Path.of(args[1]));
+            String[] oracleArgs = new String[args.length - 2];
+            System.arraycopy(args, 2, oracleArgs, 0, oracleArgs.length);
+            Predicate<String> oracle = OracleHarness.getOracle(oracleArgs);
+            if (oracleArgs[0].equals("-command")) {
+                // the command reads its query from a fixed file, so serialize the connections
+                Predicate<String> command = oracle;
+                oracle = query -> {
+                    synchronized (command) {
+                        return command.test(query);
+                    }
+                };
+            }
+            OracleServer server = new OracleServer(oracle, address);
+            Log.info("ORACLE SERVER: " + server.getAddress());
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            Thread.currentThread().join();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package main;
+
+import glade.util.OracleUtils;
+import glade.util.OracleUtils.DiscriminativeOracle;
+import glade.util.OracleUtils.SegmentedQuery;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchOracleTest {
+    private static final List<String> QUERIES = List.of("()", ")(", "[]", "(]", "{}");
+
+    // implements only test(String), so the batch methods are the defaults
+    private static class RecordingOracle implements DiscriminativeOracle {
+        private final List<String> queries = new ArrayList<>();
+        private final Predicate<String> oracle = new ProcessOracleTest.ParensOracle();
+
+        @Override
+        public boolean test(String query) {
+            this.queries.add(query);
+            return this.oracle.test(query);
+        }
+    }
+
+    private static BitSet getExpected() {
+        BitSet expected = new BitSet();
+        expected.set(0);
+        expected.set(2);
+        expected.set(4);
+        return expected;
+    }
+
+    @Test
+    public void testDefaults() {
+        RecordingOracle oracle = new RecordingOracle();
+        assertEquals(getExpected(), oracle.testAll(QUERIES));
+        assertEquals(QUERIES, oracle.queries);
+
+        // testAllPass stops at the first rejection
+        oracle.queries.clear();
+        assertFalse(oracle.testAllPass(QUERIES));
+        assertEquals(QUERIES.subList(0, 2), oracle.queries);
+        assertTrue(oracle.testAllPass(List.of("()", "[]")));
+        assertTrue(oracle.testAllPass(List.of()));
+        assertTrue(oracle.testAll(List.of()).isEmpty());
+
+        // the segmented variants concatenate the segments
+        oracle.queries.clear();
+        List<SegmentedQuery> segmented = List.of(SegmentedQuery.of("(", ")"), SegmentedQuery.of(")", "("), SegmentedQuery.of("[", "", "]"));
+        BitSet results = oracle.testAllSegments(segmented);
+        assertTrue(results.get(0) && !results.get(1) && results.get(2));
+        assertEquals(List.of("()", ")(", "[]"), oracle.queries);
+        assertFalse(oracle.testAllPassSegments(segmented));
+    }
+
+    @Test
+    public void testPredicates() {
+        // the static helpers take plain predicates as well, and give the same results
+        List<String> queries = new ArrayList<>();
+        Predicate<String> parens = new ProcessOracleTest.ParensOracle();
+        Predicate<String> oracle = query -> {
+            queries.add(query);
+            return parens.test(query);
+        };
+        assertEquals(getExpected(), OracleUtils.testAll(oracle, QUERIES));
+        assertEquals(QUERIES, queries);
+        queries.clear();
+        assertFalse(OracleUtils.testAllPass(oracle, QUERIES));
+        assertEquals(QUERIES.subList(0, 2), queries);
+        assertTrue(OracleUtils.testAllPass(oracle, List.of("()", "{}")));
+        assertEquals(getExpected(), OracleUtils.testAll(new RecordingOracle(), QUERIES));
+    }
+}
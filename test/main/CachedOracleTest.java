@@ -0,0 +1,153 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.util.OracleUtils;
+import glade.util.OracleUtils.CachedDiscriminativeOracle;
+import glade.util.OracleUtils.ConcurrentDiscriminativeOracle;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.OracleUtils.Verdict;
+import glade.util.OracleUtils.VerdictDiscriminativeOracle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachedOracleTest {
+    // the cost of a one-character entry (see CachedDiscriminativeOracle.getWeight)
+    private static final int ENTRY_WEIGHT = 1 + 32;
+
+    // accepts the queries "a" to "m", and records every query it executes
+    private static class RecordingOracle implements Predicate<String> {
+        private final List<String> queries = new ArrayList<>();
+
+        @Override
+        public boolean test(String query) {
+            this.queries.add(query);
+            return query.compareTo("n") < 0;
+        }
+    }
+
+    // the same verdicts, with "t" timing out, and records every batch it is given
+    public static class BatchOracle implements VerdictDiscriminativeOracle {
+        public final List<List<String>> batches = new ArrayList<>();
+
+        @Override
+        public Verdict getVerdict(String query) {
+            return query.equals("t") ? Verdict.TIMEOUT : query.compareTo("n") < 0 ? Verdict.ACCEPT : Verdict.REJECT;
+        }
+
+        @Override
+        public synchronized void getVerdicts(List<SegmentedQuery> queries, boolean isAllPass, Verdict[] verdicts) {
+            this.batches.add(OracleUtils.toStrings(queries));
+            VerdictDiscriminativeOracle.super.getVerdicts(queries, isAllPass, verdicts);
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        RecordingOracle target = new RecordingOracle();
+        CachedDiscriminativeOracle oracle = new CachedDiscriminativeOracle(target, 3 * ENTRY_WEIGHT);
+        for (String query : List.of("a", "b", "c")) {
+            assertTrue(oracle.test(query));
+        }
+        assertEquals(3, oracle.size());
+        // "a" is used again, so "b" is now the least recently used entry
+        assertTrue(oracle.test("a"));
+        assertFalse(oracle.test("z"));
+        assertEquals(3, oracle.size());
+        assertEquals(List.of("a", "b", "c", "z"), target.queries);
+        // "c", "a" and "z" are still cached, and "b" is executed again
+        for (String query : List.of("c", "a", "z", "b")) {
+            oracle.test(query);
+        }
+        assertEquals(List.of("a", "b", "c", "z", "b"), target.queries);
+        // that evicted "c", the least recently used entry
+        oracle.test("c");
+        assertEquals(List.of("a", "b", "c", "z", "b", "c"), target.queries);
+        assertEquals(3, oracle.size());
+    }
+
+    @Test
+    public void testHits() {
+        RecordingOracle target = new RecordingOracle();
+        CachedDiscriminativeOracle oracle = new CachedDiscriminativeOracle(target, 3 * ENTRY_WEIGHT);
+        assertEquals(0.0, oracle.getHitRate(), 0.0);
+        oracle.test("a");
+        oracle.test("a");
+        oracle.test("b");
+        oracle.test("a");
+        assertEquals(2, oracle.getHits());
+        assertEquals(2, oracle.getMisses());
+        assertEquals(0.5, oracle.getHitRate(), 0.0);
+        // a query too large to ever fit is executed every time, and evicts nothing
+        String large = "a".repeat(3 * ENTRY_WEIGHT);
+        oracle.test(large);
+        oracle.test(large);
+        assertEquals(4, oracle.getMisses());
+        assertEquals(2, oracle.size());
+        oracle.clear();
+        assertEquals(0, oracle.size());
+        oracle.test("a");
+        assertEquals(List.of("a", "b", large, large, "a"), target.queries);
+    }
+
+    @Test
+    public void testBatch() {
+        BatchOracle target = new BatchOracle();
+        CachedDiscriminativeOracle oracle = new CachedDiscriminativeOracle(target);
+        BitSet results = oracle.testAll(List.of("a", "z", "t"));
+        assertEquals(1, results.cardinality());
+        assertTrue(results.get(0));
+        // the hits are answered here, and the misses (including the uncached timeout) go as one batch
+        results = oracle.testAll(List.of("a", "b", "z", "t"));
+        assertEquals(2, results.cardinality());
+        assertEquals(List.of(List.of("a", "z", "t"), List.of("b", "t")), target.batches);
+        assertEquals(2, oracle.getHits());
+        assertEquals(5, oracle.getMisses());
+        // a cached rejection decides an all-pass batch without executing anything
+        assertFalse(oracle.testAllPass(List.of("c", "z")));
+        assertTrue(oracle.testAllPass(List.of("a", "b", "c")));
+        assertEquals(List.of(List.of("a", "z", "t"), List.of("b", "t"), List.of("c")), target.batches);
+    }
+
+    @Test
+    public void testConcurrentBatch() {
+        // each query is held until all of them are running, which only a concurrent batch can do
+        CountDownLatch running = new CountDownLatch(4);
+        Predicate<String> target = query -> {
+            running.countDown();
+            try {
+                return running.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        try (ConcurrentDiscriminativeOracle concurrent = new ConcurrentDiscriminativeOracle(target, 4)) {
+            CachedDiscriminativeOracle oracle = new CachedDiscriminativeOracle(concurrent);
+            assertTrue(oracle.testAllPass(List.of("a", "b", "c", "d")));
+            assertTrue(oracle.testAllPass(List.of("a", "b", "c", "d")));
+            assertEquals(4, oracle.getHits());
+        }
+    }
+}
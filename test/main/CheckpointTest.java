@@ -0,0 +1,151 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.grammar.synthesize.SynthesisCheckpoint;
+import glade.grammar.synthesize.SynthesisParallelism;
+import main.ProcessOracleTest.ParensOracle;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointTest {
+    private static final List<String> EXAMPLES = List.of("[()]", "([]{})", "()[]", "{([][])([][])}{[()()][()()]}");
+
+    private static class Crash extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Crash(String message) {
+            super(message);
+        }
+    }
+
+    // stands in for a run that is killed after the given number of queries
+    private static class CrashingOracle implements Predicate<String> {
+        private final Predicate<String> oracle = new ParensOracle();
+        private final long maxQueries;
+        private long queries = 0;
+
+        private CrashingOracle(long maxQueries) {
+            this.maxQueries = maxQueries;
+        }
+
+        @Override
+        public boolean test(String query) {
+            if (this.queries == this.maxQueries) {
+                throw new Crash("Crashed after " + this.maxQueries + " queries");
+            }
+            this.queries++;
+            return this.oracle.test(query);
+        }
+    }
+
+    private static Grammar learn(File directory, CrashingOracle oracle) throws IOException {
+        try (SynthesisCheckpoint checkpoint = new SynthesisCheckpoint(directory, "parens", 0)) {
+            return GrammarSynthesis.learn(EXAMPLES, checkpoint.getOracle(oracle), checkpoint);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        Grammar expected = GrammarSynthesis.learn(EXAMPLES, new ParensOracle());
+        assertTrue(expected.merges.keySet().size() > 0);
+        Path directory = Files.createTempDirectory("glade");
+        try {
+            CrashingOracle uninterrupted = new CrashingOracle(-1);
+            ParallelSynthesisTest.assertSameGrammar(expected, learn(directory.resolve("uninterrupted").toFile(), uninterrupted));
+            // a finished run is resumed without any queries
+            ParallelSynthesisTest.assertSameGrammar(expected, learn(directory.resolve("uninterrupted").toFile(), new CrashingOracle(0)));
+            // crash while synthesizing the last seed, and while checking merges
+            long[] crashes = {uninterrupted.queries / 2, uninterrupted.queries - 5};
+            for (int i = 0; i < crashes.length; i++) {
+                long crash = crashes[i];
+                File crashed = directory.resolve("crash" + crash).toFile();
+                try {
+                    learn(crashed, new CrashingOracle(crash));
+                    throw new AssertionError("Expected a crash after " + crash + " queries");
+                } catch (Crash e) {
+                    // expected
+                }
+                try (SynthesisCheckpoint checkpoint = new SynthesisCheckpoint(crashed, "parens", 0)) {
+                    assertEquals(crash, checkpoint.getStore().size());
+                    assertEquals(i == 0 ? EXAMPLES.size() - 1 : EXAMPLES.size(), checkpoint.getNumRoots());
+                    assertEquals(i == 0, checkpoint.getNumProcessed() == 0);
+                }
+                CrashingOracle resumed = new CrashingOracle(-1);
+                ParallelSynthesisTest.assertSameGrammar(expected, learn(crashed, resumed));
+                // the queries answered before the crash are not asked again
+                assertEquals(uninterrupted.queries - crash, resumed.queries);
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testFailedSeed() throws IOException {
+        // only the second seed has queries with braces
+        List<String> examples = List.of("[()]", "{{}}", "()[]");
+        SynthesisParallelism parallelism = new SynthesisParallelism(1, 1, 2);
+        Grammar expected = GrammarSynthesis.learn(examples, new ParensOracle(), parallelism);
+        Predicate<String> parens = new ParensOracle();
+        Predicate<String> failing = query -> {
+            if (query.contains("{")) {
+                throw new IllegalStateException("Failed on query: " + query);
+            }
+            return parens.test(query);
+        };
+        Path directory = Files.createTempDirectory("glade");
+        try {
+            try (SynthesisCheckpoint checkpoint = new SynthesisCheckpoint(directory.toFile(), "parens", 0)) {
+                Map<Integer, RuntimeException> failures = new HashMap<>();
+                Grammar grammar = GrammarSynthesis.learn(examples, checkpoint.getOracle(failing), parallelism, checkpoint, failures);
+                assertEquals(Set.of(1), failures.keySet());
+                assertFalse(expected.node.toString().equals(grammar.node.toString()));
+                assertEquals(examples.size() - 1, checkpoint.getNumRoots());
+            }
+            // the failed seed is synthesized again, and its merges checked
+            try (SynthesisCheckpoint checkpoint = new SynthesisCheckpoint(directory.toFile(), "parens", 0)) {
+                ParallelSynthesisTest.assertSameGrammar(expected, GrammarSynthesis.learn(examples, checkpoint.getOracle(parens), parallelism, checkpoint));
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.grammar.synthesize.SynthesisParallelism;
+import glade.util.OracleUtils.ConcurrentDiscriminativeOracle;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConstantGeneralizationTest {
+    // fixed-width fields stay long constants, whose characters are generalized
+    private static final String LANGUAGE = "(key=[A-Za-z0-9]{8};|date=\\d{4}-\\d{2}-\\d{2};)*";
+    private static final List<String> EXAMPLES = List.of("key=aZ3kQ9xL;", "date=2024-01-15;");
+
+    private static class CountingOracle implements Predicate<String> {
+        private final AtomicLong queries = new AtomicLong();
+
+        @Override
+        public boolean test(String query) {
+            this.queries.incrementAndGet();
+            return query.matches(LANGUAGE);
+        }
+    }
+
+    @Test
+    public void testGroups() {
+        CountingOracle sequential = new CountingOracle();
+        Grammar expected = GrammarSynthesis.learn(EXAMPLES, sequential);
+        for (int groupSize : new int[]{2, 3, 16}) {
+            CountingOracle grouped = new CountingOracle();
+            ParallelSynthesisTest.assertSameGrammar(expected, GrammarSynthesis.learn(EXAMPLES, grouped, new SynthesisParallelism(1, 1, 1, groupSize)));
+            assertTrue(grouped.queries.get() < sequential.queries.get());
+        }
+    }
+
+    // Group testing assumes that the oracle accepts several replacements together exactly when it
+    // accepts each of them on its own. This oracle accepts at most one digit, so every single digit
+    // passes but a group of two does not, and some positions are left without digits.
+    @Test
+    public void testNonMonotone() {
+        Predicate<String> oracle = query -> query.matches("key=[a-z0-9]{8};") && query.chars().filter(Character::isDigit).count() <= 1;
+        List<String> examples = List.of("key=abcdefgh;");
+        String expected = GrammarSynthesis.learn(examples, oracle).node.toString();
+        String grouped = GrammarSynthesis.learn(examples, oracle, new SynthesisParallelism(1, 1, 1, 2)).node.toString();
+        for (char c = 'a'; c <= 'h'; c++) {
+            assertTrue(expected.contains("(" + c + "+0+1+2+3+4+5+6+7+8+9+"));
+        }
+        assertNotEquals(expected, grouped);
+        assertTrue(grouped.contains("(c+a+b+d+"));
+    }
+
+    @Test
+    public void testParallel() {
+        Grammar expected = GrammarSynthesis.learn(EXAMPLES, new CountingOracle());
+        for (SynthesisParallelism parallelism : new SynthesisParallelism[]{new SynthesisParallelism(16), new SynthesisParallelism(1, 4), new SynthesisParallelism(8, 4), new SynthesisParallelism(8, 4, 2, 4)}) {
+            try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(new CountingOracle(), 8)) {
+                ParallelSynthesisTest.assertSameGrammar(expected, GrammarSynthesis.learn(EXAMPLES, oracle, parallelism));
+            }
+        }
+    }
+}
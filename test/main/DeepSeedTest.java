@@ -0,0 +1,105 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarSerializer;
+import glade.grammar.GrammarUtils;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.GrammarUtils.NodeMerges;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.grammar.synthesize.RegexSynthesis;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+
+// Long seeds give grammars thousands of levels deep, so these run on a thread with a small stack.
+public class DeepSeedTest {
+    private static final long STACK_SIZE = 256 * 1024;
+
+    private static boolean isBalanced(String query) {
+        int depth = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth < 0) {
+                return false;
+            }
+        }
+        return depth == 0;
+    }
+
+    private static <T> T runWithSmallStack(Supplier<T> supplier) throws InterruptedException {
+        AtomicReference<T> result = new AtomicReference<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                result.set(supplier.get());
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        }, "glade-small-stack", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        return result.get();
+    }
+
+    @Test
+    public void testLearn() throws InterruptedException {
+        Predicate<String> oracle = DeepSeedTest::isBalanced;
+        Grammar expected = GrammarSynthesis.learn(List.of("()()()()"), oracle);
+        // an alternation per "()", each nested in the previous one
+        Grammar grammar = runWithSmallStack(() -> GrammarSynthesis.learn(List.of("()".repeat(4096)), oracle));
+        ParallelSynthesisTest.assertSameGrammar(expected, grammar);
+    }
+
+    @Test
+    public void testSerialize() throws InterruptedException {
+        // every node stores its full context, so the serialized grammar grows with the square of the seed
+        Node node = runWithSmallStack(() -> RegexSynthesis.getNode("()".repeat(1024), DeepSeedTest::isBalanced));
+        Grammar grammar = runWithSmallStack(() -> {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                GrammarSerializer.serialize(new Grammar(node, new NodeMerges()), new DataOutputStream(bytes));
+                return GrammarSerializer.deserializeNodeWithMerges(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        List<Node> nodes = GrammarUtils.getAllNodes(node);
+        List<Node> newNodes = GrammarUtils.getAllNodes(grammar.node);
+        assertEquals(nodes.size(), newNodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            assertEquals(nodes.get(i).getClass(), newNodes.get(i).getClass());
+            assertEquals(nodes.get(i).getData().example, newNodes.get(i).getData().example);
+            assertEquals(nodes.get(i).getData().context.getPre(), newNodes.get(i).getData().context.getPre());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package main;
+
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.OracleUtils.Verdict;
+import glade.util.ShellUtils.ExecDiscriminativeOracle;
+import glade.util.ShellUtils.OutputVerdict;
+import glade.util.ShellUtils.QueryInput;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExecOracleTest {
+    // larger than any pipe buffer
+    private static final String LARGE_QUERY = "x".repeat(1 << 20);
+
+    private static List<String> getCommand(QueryInput input, String... command) {
+        List<String> argv = new ArrayList<>(List.of(command));
+        if (input == QueryInput.FILE) {
+            argv.add(ExecDiscriminativeOracle.QUERY_FILE_ARGUMENT);
+        }
+        return argv;
+    }
+
+    @Test
+    public void testVerdicts() {
+        for (QueryInput input : QueryInput.values()) {
+            // in FILE mode the query file is the last argument ("$1" of the script)
+            try (ExecDiscriminativeOracle exitCode = new ExecDiscriminativeOracle(getCommand(input, "/bin/sh", "-c", "! grep -q bad \"$@\"", "sh"), input, OutputVerdict.EXIT_CODE, 10000);
+                 ExecDiscriminativeOracle stdout = new ExecDiscriminativeOracle(getCommand(input, "/bin/sh", "-c", "grep bad \"$@\"", "sh"), input, OutputVerdict.EMPTY_STDOUT, 10000);
+                 ExecDiscriminativeOracle stderr = new ExecDiscriminativeOracle(getCommand(input, "/bin/sh", "-c", "grep bad \"$@\" >&2", "sh"), input, OutputVerdict.EMPTY_STDERR, 10000)) {
+                for (ExecDiscriminativeOracle oracle : List.of(exitCode, stdout, stderr)) {
+                    // a shorter query after a longer one must not see the end of the longer one
+                    assertEquals(Verdict.REJECT, oracle.getVerdict("bad bad bad"));
+                    assertEquals(Verdict.ACCEPT, oracle.getVerdict("good"));
+                    assertEquals(Verdict.ACCEPT, oracle.getVerdict(""));
+                    assertEquals(Verdict.REJECT, oracle.getVerdict(SegmentedQuery.of("good ", "b", "ad")));
+                    assertEquals(Verdict.ACCEPT, oracle.getVerdict(SegmentedQuery.of("good ", "b", "", "d")));
+                    assertEquals(Verdict.REJECT, oracle.getVerdict(LARGE_QUERY + "bad"));
+                    assertEquals(Verdict.ACCEPT, oracle.getVerdict("good"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnreadInput() {
+        // the target exits without reading its input
+        try (ExecDiscriminativeOracle oracle = new ExecDiscriminativeOracle(List.of("true"), QueryInput.STDIN, OutputVerdict.EXIT_CODE, 10000)) {
+            assertEquals(Verdict.ACCEPT, oracle.getVerdict(LARGE_QUERY));
+        }
+        // the target never reads its input and never exits, so only the deadline can end it
+        for (OutputVerdict verdict : OutputVerdict.values()) {
+            try (ExecDiscriminativeOracle oracle = new ExecDiscriminativeOracle(List.of("sleep", "60"), QueryInput.STDIN, verdict, 500)) {
+                long time = System.currentTimeMillis();
+                assertEquals(Verdict.TIMEOUT, oracle.getVerdict(LARGE_QUERY));
+                assertTrue(System.currentTimeMillis() - time < 10000);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.util.OracleUtils.IncrementalDiscriminativeOracle;
+import glade.util.OracleUtils.IncrementalOracle;
+import main.ProcessOracleTest.ParensOracle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalOracleTest {
+    // the stack of open parentheses, as an immutable linked list
+    public static class ParensState {
+        private static final ParensState EMPTY = new ParensState('\0', null);
+
+        private final char open;
+        private final ParensState next;
+
+        private ParensState(char open, ParensState next) {
+            this.open = open;
+            this.next = next;
+        }
+    }
+
+    public static class IncrementalParensOracle implements IncrementalOracle<ParensState> {
+        // simulated extra parsing cost per character, for benchmarking
+        private final int work;
+        private long sink = 0;
+
+        public IncrementalParensOracle(int work) {
+            this.work = work;
+        }
+
+        public IncrementalParensOracle() {
+            this(0);
+        }
+
+        @Override
+        public ParensState getInitialState() {
+            return ParensState.EMPTY;
+        }
+
+        @Override
+        public ParensState advance(ParensState state, CharSequence text, int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                for (int j = 0; j < this.work; j++) {
+                    this.sink = this.sink * 31 + c;
+                }
+                if (c == '(' || c == '[' || c == '{') {
+                    state = new ParensState(c, state);
+                } else if (c == ')' || c == ']' || c == '}') {
+                    if (state == ParensState.EMPTY) {
+                        return null;
+                    }
+                    char d = state.open;
+                    if ((d == '(' && c != ')') || (d == '[' && c != ']') || (d == '{' && c != '}')) {
+                        return null;
+                    }
+                    state = state.next;
+                } else {
+                    return null;
+                }
+            }
+            return state;
+        }
+
+        @Override
+        public boolean isAccepted(ParensState state) {
+            return state == ParensState.EMPTY;
+        }
+    }
+
+    static String getExample(Random random, int depth) {
+        StringBuilder sb = new StringBuilder();
+        int n = 1 + random.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            int kind = random.nextInt(3);
+            sb.append("([{".charAt(kind));
+            if (depth > 0) {
+                sb.append(getExample(random, depth - 1));
+            }
+            sb.append(")]}".charAt(kind));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testAgreement() {
+        Random random = new Random(0);
+        ParensOracle parens = new ParensOracle();
+        IncrementalDiscriminativeOracle<ParensState> oracle = new IncrementalDiscriminativeOracle<>(new IncrementalParensOracle(), 4, 16);
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder query = new StringBuilder(getExample(random, 3));
+            if (random.nextBoolean()) {
+                query.deleteCharAt(random.nextInt(query.length()));
+            }
+            queries.add(query.toString());
+            assertEquals(parens.test(query.toString()), oracle.test(query.toString()));
+        }
+        for (int i = 0; i + 8 <= queries.size(); i += 8) {
+            List<String> batch = queries.subList(i, i + 8);
+            for (int j = 0; j < batch.size(); j++) {
+                assertEquals(parens.test(batch.get(j)), oracle.testAll(batch).get(j));
+            }
+        }
+    }
+
+    @Test
+    public void testBatchOrder() {
+        // two families of queries, each sharing a long prefix, interleaved
+        Random random = new Random(0);
+        String[] prefixes = {"(".repeat(100), "[".repeat(100)};
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            String prefix = prefixes[i % 2];
+            queries.add(prefix + prefix.replace('(', ')').replace('[', ']') + getExample(random, 2));
+        }
+        // a history of one query only helps when the previous query is from the same family
+        IncrementalDiscriminativeOracle<ParensState> single = new IncrementalDiscriminativeOracle<>(new IncrementalParensOracle(), 1000, 1);
+        IncrementalDiscriminativeOracle<ParensState> batch = new IncrementalDiscriminativeOracle<>(new IncrementalParensOracle(), 1000, 1);
+        BitSet results = batch.testAll(queries);
+        ParensOracle parens = new ParensOracle();
+        for (int i = 0; i < queries.size(); i++) {
+            assertEquals(parens.test(queries.get(i)), single.test(queries.get(i)));
+            assertEquals(parens.test(queries.get(i)), results.get(i));
+        }
+        assertEquals(single.getNumQueryCharacters(), batch.getNumQueryCharacters());
+        assertTrue(2 * batch.getNumParsedCharacters() < single.getNumParsedCharacters());
+        assertTrue(batch.testAllPass(queries));
+    }
+
+    @Test
+    public void testLearn() {
+        String example = "{([][])([][])}{[()()][()()]}";
+        IncrementalDiscriminativeOracle<ParensState> oracle = new IncrementalDiscriminativeOracle<>(new IncrementalParensOracle());
+        Grammar expected = GrammarSynthesis.learn(List.of(example), new ParensOracle());
+        Grammar grammar = GrammarSynthesis.learn(List.of(example), oracle);
+        assertEquals(expected.node.toString(), grammar.node.toString());
+        assertTrue(oracle.getNumParsedCharacters() < oracle.getNumQueryCharacters());
+    }
+
+    // Compares learning with the same recognizer run from scratch on every query against running it
+    // from checkpoints. Pass -Dwork=n to add simulated parsing cost per character: with the bare
+    // recognizer (n = 0) the checkpoints are slower, and they break even at about n = 50.
+    public static void main(String[] args) {
+        String example = getExample(new Random(0), Integer.getInteger("depth", 5));
+        int work = Integer.getInteger("work", 0);
+        System.out.println("example length: " + example.length() + ", work per character: " + work);
+        for (int round = 0; round < 3; round++) {
+            IncrementalParensOracle parens = new IncrementalParensOracle(work);
+            Predicate<String> scratch = query -> {
+                ParensState state = parens.advance(parens.getInitialState(), query, 0, query.length());
+                return state != null && parens.isAccepted(state);
+            };
+            IncrementalDiscriminativeOracle<ParensState> incremental = new IncrementalDiscriminativeOracle<>(parens);
+            long time = System.nanoTime();
+            GrammarSynthesis.learn(List.of(example), scratch);
+            System.out.println("from scratch: " + ((System.nanoTime() - time) / 1000000) + " ms");
+            time = System.nanoTime();
+            GrammarSynthesis.learn(List.of(example), incremental);
+            System.out.println("incremental: " + ((System.nanoTime() - time) / 1000000) + " ms (" + incremental + ")");
+        }
+    }
+}
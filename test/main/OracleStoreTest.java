@@ -0,0 +1,130 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package main;
+
+import glade.util.OracleUtils.OracleStore;
+import glade.util.OracleUtils.StoredDiscriminativeOracle;
+import main.CachedOracleTest.BatchOracle;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OracleStoreTest {
+    private static final String FINGERPRINT = "parens";
+
+    private static void put(File file, String prefix, int numRecords) throws IOException {
+        try (OracleStore store = new OracleStore(file, FINGERPRINT)) {
+            for (int i = 0; i < numRecords; i++) {
+                store.put(prefix + i, i % 2 == 0);
+            }
+        }
+    }
+
+    private static void assertRecords(OracleStore store, String prefix, int numRecords) {
+        for (int i = 0; i < numRecords; i++) {
+            assertEquals(i % 2 == 0, store.get(prefix + i).getT());
+        }
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        File file = Files.createTempFile("glade", ".store").toFile();
+        try {
+            put(file, "first", 10);
+            // a writer dies part way through a record
+            try (FileOutputStream output = new FileOutputStream(file, true)) {
+                output.write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+            }
+            // a live writer (which opened the store before the crash) appends after it
+            try (OracleStore store = new OracleStore(file, FINGERPRINT)) {
+                try (FileOutputStream output = new FileOutputStream(file, true)) {
+                    output.write(new byte[]{1, 2, 3});
+                }
+                for (int i = 0; i < 10; i++) {
+                    store.put("second" + i, i % 2 == 0);
+                }
+            }
+            try (OracleStore store = new OracleStore(file, FINGERPRINT)) {
+                assertEquals(20, store.size());
+                assertRecords(store, "first", 10);
+                assertRecords(store, "second", 10);
+                assertFalse(store.get("third").hasT());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWriters() throws Exception {
+        File file = Files.createTempFile("glade", ".store").toFile();
+        try {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            List<Process> writers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                writers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), OracleStoreTest.class.getName(), file.getPath(), "writer" + i + ":", "500").inheritIO().start());
+            }
+            for (Process writer : writers) {
+                assertEquals(0, writer.waitFor());
+            }
+            assertTrue(file.length() > 0);
+            try (OracleStore store = new OracleStore(file, FINGERPRINT)) {
+                assertEquals(1500, store.size());
+                for (int i = 0; i < 3; i++) {
+                    assertRecords(store, "writer" + i + ":", 500);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        File file = Files.createTempFile("glade", ".store").toFile();
+        try (OracleStore store = new OracleStore(file, FINGERPRINT)) {
+            BatchOracle target = new BatchOracle();
+            StoredDiscriminativeOracle oracle = new StoredDiscriminativeOracle(target, store);
+            assertEquals(1, oracle.testAll(List.of("a", "z", "t")).cardinality());
+            // the stored verdicts are answered here, and the rest (including the timeout) go as one batch
+            assertEquals(2, oracle.testAll(List.of("a", "b", "z", "t")).cardinality());
+            assertEquals(List.of(List.of("a", "z", "t"), List.of("b", "t")), target.batches);
+            assertEquals(3, store.size());
+            assertEquals(2, store.getHits());
+            assertEquals(5, store.getMisses());
+            // a stored rejection decides an all-pass batch without executing anything
+            assertFalse(oracle.testAllPass(List.of("c", "z")));
+            assertTrue(oracle.testAllPass(List.of("a", "c")));
+            assertEquals(List.of(List.of("a", "z", "t"), List.of("b", "t"), List.of("c")), target.batches);
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Writer process for testWriters: OracleStoreTest <file> <prefix> <records>
+    public static void main(String[] args) throws IOException {
+        put(new File(args[0]), args[1], Integer.parseInt(args[2]));
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils;
+import glade.grammar.GrammarUtils.ConstantNode;
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.grammar.synthesize.SynthesisParallelism;
+import glade.util.OracleUtils.ConcurrentDiscriminativeOracle;
+import main.ProcessOracleTest.ParensOracle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelSynthesisTest {
+    private static final List<String> EXAMPLES = List.of("{([][])([][])}{[()()][()()]}", "[()]");
+
+    // merges as pairs of pre-order node indices, so that grammars learned separately can be compared
+    private static Set<List<Integer>> getMerges(Grammar grammar) {
+        List<Node> nodes = GrammarUtils.getAllNodes(grammar.node);
+        Map<Node,Integer> indices = new IdentityHashMap<>();
+        for (Node node : nodes) {
+            indices.put(node, indices.size());
+        }
+        Set<List<Integer>> merges = new HashSet<>();
+        for (Node first : grammar.merges.keySet()) {
+            for (Node second : grammar.merges.get(first)) {
+                merges.add(List.of(indices.get(first), indices.get(second)));
+            }
+        }
+        return merges;
+    }
+
+    static void assertSameGrammar(Grammar expected, Grammar grammar) {
+        assertEquals(expected.node.toString(), grammar.node.toString());
+        assertEquals(getMerges(expected), getMerges(grammar));
+    }
+
+    @Test
+    public void testSearch() {
+        Grammar expected = GrammarSynthesis.learn(EXAMPLES, new ParensOracle());
+        for (int window : new int[]{2, 7, 64}) {
+            try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(new ParensOracle(), 8)) {
+                assertSameGrammar(expected, GrammarSynthesis.learn(EXAMPLES, oracle, new SynthesisParallelism(window)));
+            }
+        }
+    }
+
+    @Test
+    public void testSubtrees() {
+        String example = IncrementalOracleTest.getExample(new Random(0), 3);
+        Grammar expected = GrammarSynthesis.learn(List.of(example), new ParensOracle());
+        try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(new ParensOracle(), 8)) {
+            assertSameGrammar(expected, GrammarSynthesis.learn(List.of(example), oracle, new SynthesisParallelism(1, 4)));
+            assertSameGrammar(expected, GrammarSynthesis.learn(List.of(example), oracle, new SynthesisParallelism(4, 4)));
+        }
+    }
+
+    @Test
+    public void testSeeds() {
+        List<String> examples = List.of("{([][])([][])}{[()()][()()]}", "[()]", IncrementalOracleTest.getExample(new Random(0), 2), "()[]");
+        Grammar expected = GrammarSynthesis.learn(examples, new ParensOracle());
+        try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(new ParensOracle(), 8)) {
+            assertSameGrammar(expected, GrammarSynthesis.learn(examples, oracle, new SynthesisParallelism(4, 2, 3)));
+        }
+    }
+
+    @Test
+    public void testSeedFailure() {
+        Predicate<String> parens = new ParensOracle();
+        Predicate<String> oracle = query -> {
+            if (query.contains("x")) {
+                throw new IllegalStateException("Unexpected query: " + query);
+            }
+            return parens.test(query);
+        };
+        List<String> examples = List.of("[()]", "(x)", "()[]");
+        // failures are isolated the same way whether or not the seeds are synthesized in parallel
+        for (SynthesisParallelism parallelism : new SynthesisParallelism[]{SynthesisParallelism.SEQUENTIAL, new SynthesisParallelism(1, 1, 2)}) {
+            // unless asked for, a failure fails the run
+            boolean isFailed = false;
+            try {
+                GrammarSynthesis.getRegularGrammarMultiple(examples, oracle, parallelism);
+            } catch (RuntimeException e) {
+                isFailed = true;
+            }
+            assertTrue(isFailed);
+            Map<Integer, RuntimeException> failures = new HashMap<>();
+            Grammar grammar = GrammarSynthesis.getRegularGrammarMultiple(examples, oracle, parallelism, failures);
+            assertEquals(Set.of(1), failures.keySet());
+            assertTrue(failures.get(1) instanceof IllegalStateException);
+            List<Node> roots = grammar.node.getChildren();
+            assertEquals(examples.size(), roots.size());
+            assertEquals(GrammarSynthesis.getRegularGrammarMultiple(List.of("[()]"), parens).node.getChildren().get(0).toString(), roots.get(0).toString());
+            assertTrue(roots.get(1) instanceof ConstantNode);
+            assertEquals("(x)", roots.get(1).getData().example);
+            assertEquals(GrammarSynthesis.getRegularGrammarMultiple(List.of("()[]"), parens).node.getChildren().get(0).toString(), roots.get(2).toString());
+        }
+    }
+
+    // Learns from -Dseeds random nested parentheses seeds with an oracle that takes the given
+    // number of microseconds per query (-Dlatency) without using the CPU, as a process oracle
+    // would, using -Dconcurrency threads.
+    public static void main(String[] args) {
+        Random random = new Random(0);
+        List<String> examples = new ArrayList<>();
+        for (int i = 0; i < Integer.getInteger("seeds", 1); i++) {
+            examples.add(IncrementalOracleTest.getExample(random, Integer.getInteger("depth", 3)));
+        }
+        long latency = Long.getLong("latency", 200);
+        int concurrency = Integer.getInteger("concurrency", 32);
+        Predicate<String> parens = new ParensOracle();
+        Predicate<String> slow = query -> {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latency));
+            return parens.test(query);
+        };
+        System.out.println("example lengths: " + examples.stream().map(String::length).collect(Collectors.toList()) + ", latency: " + latency + " us, concurrency: " + concurrency);
+        for (SynthesisParallelism parallelism : new SynthesisParallelism[]{SynthesisParallelism.SEQUENTIAL, new SynthesisParallelism(concurrency / 2), new SynthesisParallelism(concurrency), new SynthesisParallelism(1, concurrency), new SynthesisParallelism(concurrency / 4, 4), new SynthesisParallelism(concurrency / 8, 2, 4)}) {
+            try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(slow, concurrency)) {
+                long time = System.nanoTime();
+                GrammarSynthesis.getRegularGrammarMultiple(examples, oracle, parallelism);
+                System.out.println(parallelism + ": " + ((System.nanoTime() - time) / 1000000) + " ms");
+            }
+        }
+    }
+}
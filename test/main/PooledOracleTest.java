@@ -0,0 +1,158 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.util.OracleUtils.ConcurrentDiscriminativeOracle;
+import glade.util.OracleUtils.PooledDiscriminativeOracle;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PooledOracleTest {
+    private static final List<String> EXAMPLES = List.of(
+            "<a xy=\"xy\">xy<a xy=\"xy\">xy<a>xy</a>xy</a>xy</a>",
+            "<a>xy<![CDATA[xy]]>xy</a>",
+            "<a>xy<!--xy-->xy</a>",
+            "<a>xy<?xy xy?>xy</a>",
+            "<a>xy<a xy=\"xy\"/>xy</a>",
+            "<a/>");
+
+    // the oracle in XMLTest, which builds a new factory and reader per query
+    private static boolean testXml(String query) {
+        try {
+            XMLInputFactory.newDefaultFactory().createXMLEventReader(new StringReader(query)).forEachRemaining(r -> {
+            });
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private static SAXParser getSaxParser() {
+        try {
+            return SAXParserFactory.newInstance().newSAXParser();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean testSax(String query) {
+        try {
+            getSaxParser().parse(new InputSource(new StringReader(query)), new DefaultHandler());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static PooledDiscriminativeOracle<XMLInputFactory> getPooledXmlOracle() {
+        return new PooledDiscriminativeOracle<>(XMLInputFactory::newDefaultFactory, (factory, query) -> {
+            XMLStreamReader reader = factory.createXMLStreamReader(PooledDiscriminativeOracle.getReader(query));
+            while (reader.hasNext()) {
+                reader.next();
+            }
+            return true;
+        });
+    }
+
+    private static PooledDiscriminativeOracle<SAXParser> getPooledSaxOracle() {
+        return new PooledDiscriminativeOracle<>(PooledOracleTest::getSaxParser, (parser, query) -> {
+            parser.parse(new InputSource(PooledDiscriminativeOracle.getReader(query)), new DefaultHandler());
+            return true;
+        }, SAXParser::reset, -1);
+    }
+
+    private static List<String> getQueries(int n) {
+        Random random = new Random(0);
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            StringBuilder query = new StringBuilder(EXAMPLES.get(random.nextInt(EXAMPLES.size())));
+            if (random.nextBoolean()) {
+                query.deleteCharAt(random.nextInt(query.length()));
+            }
+            queries.add(query.toString());
+        }
+        return queries;
+    }
+
+    @Test
+    public void testConcurrent() {
+        List<String> queries = getQueries(2000);
+        BitSet expected = new BitSet();
+        for (int i = 0; i < queries.size(); i++) {
+            if (testXml(queries.get(i))) {
+                expected.set(i);
+            }
+        }
+        for (PooledDiscriminativeOracle<?> pooled : List.of(getPooledXmlOracle(), getPooledSaxOracle())) {
+            try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(pooled, 4)) {
+                assertEquals(expected, oracle.testAll(queries));
+            }
+            assertTrue(pooled.getNumCreated() <= 4);
+        }
+    }
+
+    @Test
+    public void testTimeout() {
+        PooledDiscriminativeOracle<Object> oracle = new PooledDiscriminativeOracle<>(Object::new, (parser, query) -> {
+            while (query.equals("hang")) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return query.equals("ok");
+        }, parser -> {}, 200);
+        assertTrue(oracle.test("ok"));
+        assertFalse(oracle.test("hang"));
+        assertEquals(1, oracle.getNumTimeouts());
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertTrue(oracle.test("ok"));
+        assertEquals(2, oracle.getNumCreated());
+    }
+
+    // Compares the pooled oracles against building a parser per query, as XMLTest does.
+    public static void main(String[] args) {
+        List<String> queries = getQueries(20000);
+        List<Predicate<String>> oracles = List.of(PooledOracleTest::testXml, getPooledXmlOracle(), PooledOracleTest::testSax, getPooledSaxOracle());
+        List<String> names = List.of("per-query XMLInputFactory", "pooled XMLInputFactory", "per-query SAXParser", "pooled SAXParser");
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < oracles.size(); i++) {
+                long time = System.nanoTime();
+                int numAccepted = 0;
+                for (String query : queries) {
+                    if (oracles.get(i).test(query)) {
+                        numAccepted++;
+                    }
+                }
+                System.out.println(names.get(i) + ": " + ((System.nanoTime() - time) / 1000 / queries.size()) + " us/query (" + numAccepted + " accepted)");
+            }
+        }
+    }
+}
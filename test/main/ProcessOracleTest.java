@@ -0,0 +1,119 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.util.OracleUtils.Verdict;
+import glade.util.ShellUtils.OracleHarness;
+import glade.util.ShellUtils.ProcessDiscriminativeOracle;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Stack;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessOracleTest {
+
+    public static class ParensOracle implements Predicate<String> {
+        @Override
+        public boolean test(String query) {
+            if (query.equals("crash")) {
+                System.exit(1);
+            }
+            if (query.equals("hang")) {
+                while (true) {
+                    Thread.onSpinWait();
+                }
+            }
+            Stack<Character> stack = new Stack<>();
+            for (int i = 0; i < query.length(); i++) {
+                char c = query.charAt(i);
+                if (c == '(' || c == '[' || c == '{') {
+                    stack.push(c);
+                } else if (c == ')' || c == ']' || c == '}') {
+                    if (stack.isEmpty()) {
+                        return false;
+                    }
+                    char d = stack.pop();
+                    if ((d == '(' && c != ')') || (d == '[' && c != ']') || (d == '{' && c != '}')) {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return stack.isEmpty();
+        }
+    }
+
+    private static List<String> getHarnessCommand() {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return List.of(java, "-cp", System.getProperty("java.class.path"), OracleHarness.class.getName(), "-class", ParensOracle.class.getName());
+    }
+
+    @Test
+    public void testRecycleAndRestart() {
+        try (ProcessDiscriminativeOracle oracle = new ProcessDiscriminativeOracle(getHarnessCommand(), 10000, 3)) {
+            assertTrue(oracle.test("([]{})"));
+            assertFalse(oracle.test("([)]"));
+            assertTrue(oracle.test(""));
+            assertFalse(oracle.test("(\u00e9)"));
+            assertEquals(2, oracle.getNumStarts());
+
+            // the harness dies on both attempts, so the query is rejected
+            assertEquals(Verdict.REJECT, oracle.getVerdict("crash"));
+            assertEquals(2, oracle.getNumCrashes());
+            assertTrue(oracle.test("{}"));
+        }
+    }
+
+    @Test
+    public void testStartFailure() {
+        // a target that cannot be started is an error rather than a rejection
+        try (ProcessDiscriminativeOracle oracle = new ProcessDiscriminativeOracle(List.of("/nonexistent/glade-harness"), 10000, 1000)) {
+            boolean isFailed = false;
+            try {
+                oracle.test("()");
+            } catch (RuntimeException e) {
+                isFailed = true;
+            }
+            assertTrue(isFailed);
+        }
+    }
+
+    @Test
+    public void testTimeout() {
+        try (ProcessDiscriminativeOracle oracle = new ProcessDiscriminativeOracle(getHarnessCommand(), 2000, 1000)) {
+            assertTrue(oracle.test("()"));
+            assertFalse(oracle.test("hang"));
+            assertEquals(1, oracle.getNumTimeouts());
+            assertTrue(oracle.test("[]"));
+        }
+    }
+
+    @Test
+    public void testLearn() {
+        try (ProcessDiscriminativeOracle oracle = new ProcessDiscriminativeOracle(getHarnessCommand(), 10000, 1000)) {
+            Grammar grammar = GrammarSynthesis.learn(List.of("{([][])([][])}"), oracle);
+            assertEquals(1, grammar.node.getChildren().size());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.util.OracleUtils.CharSequenceDiscriminativeOracle;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.ShellUtils;
+import main.ProcessOracleTest.ParensOracle;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SegmentedQueryTest {
+    private static byte[] getBytes(ByteBuffer[] buffers) {
+        ByteBuffer bytes = ByteBuffer.allocate(ShellUtils.getRemaining(buffers));
+        for (ByteBuffer buffer : buffers) {
+            bytes.put(buffer.duplicate());
+        }
+        return bytes.array();
+    }
+
+    @Test
+    public void testCharSequence() {
+        // includes empty segments and a surrogate pair split across two segments
+        SegmentedQuery query = SegmentedQuery.of("", "ab", "", "c\u00e9\uD83D", "\uDE00x", "");
+        String string = "abc\u00e9\uD83D\uDE00x";
+        assertEquals(string, query.toString());
+        assertEquals(string.length(), query.length());
+        for (int i = 0; i < string.length(); i++) {
+            assertEquals(string.charAt(i), query.charAt(i));
+        }
+        assertEquals(string.substring(2, 6), query.subSequence(2, 6).toString());
+        assertArrayEquals(string.getBytes(StandardCharsets.UTF_8), getBytes(query.encode()));
+        assertArrayEquals("a\u00e9".getBytes(StandardCharsets.UTF_8), getBytes(SegmentedQuery.of("a", "\u00e9").encode()));
+        assertEquals(0, SegmentedQuery.of().length());
+    }
+
+    @Test
+    public void testCharSequenceOracle() {
+        Predicate<String> parens = new ParensOracle();
+        AtomicInteger numStrings = new AtomicInteger();
+        CharSequenceDiscriminativeOracle oracle = new CharSequenceDiscriminativeOracle(query -> {
+            if (query instanceof String) {
+                numStrings.incrementAndGet();
+            }
+            return parens.test(query.toString());
+        });
+        List<String> examples = List.of("{([][])([][])}{[()()][()()]}", IncrementalOracleTest.getExample(new Random(0), 2));
+        Grammar grammar = GrammarSynthesis.learn(examples, oracle);
+        ParallelSynthesisTest.assertSameGrammar(GrammarSynthesis.learn(examples, parens), grammar);
+        // the queries built from contexts reach the recognizer as segments
+        assertEquals(0, numStrings.get());
+    }
+}
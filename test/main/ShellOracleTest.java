@@ -0,0 +1,128 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package main;
+
+import glade.util.OracleUtils.ConcurrentDiscriminativeOracle;
+import glade.util.OracleUtils.Verdict;
+import glade.util.ShellUtils.CommandFactory;
+import glade.util.ShellUtils.ExecuteDiscriminativeOracle;
+import glade.util.ShellUtils.PooledShellOracle;
+import glade.util.ShellUtils.ShellOracle;
+import glade.util.ShellUtils.VerdictMode;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShellOracleTest {
+    private static Verdict getVerdict(String command, boolean isError, VerdictMode mode, String query) throws IOException {
+        File file = File.createTempFile("glade-query", ".txt");
+        File auxFile = File.createTempFile("glade-aux", ".txt");
+        try {
+            ShellOracle shell = new ShellOracle(file.getPath(), auxFile.getPath(), command.replace("FILE", file.getPath()), isError, 30000);
+            return new ExecuteDiscriminativeOracle(shell, mode).getVerdict(query);
+        } finally {
+            file.delete();
+            auxFile.delete();
+        }
+    }
+
+    @Test
+    public void testVerdictModes() throws IOException {
+        // prints the lines containing "bad", and exits with an error on queries containing "fail"
+        String command = "grep bad FILE; ! grep -q fail FILE";
+        for (boolean isError : new boolean[]{false, true}) {
+            String curCommand = isError ? "(" + command + ") >&2" : command;
+            for (VerdictMode mode : new VerdictMode[]{VerdictMode.BUFFERED, VerdictMode.STREAMING}) {
+                assertEquals(Verdict.ACCEPT, getVerdict(curCommand, isError, mode, "ok"));
+                assertEquals(Verdict.REJECT, getVerdict(curCommand, isError, mode, "bad"));
+                assertEquals(Verdict.ACCEPT, getVerdict(curCommand, isError, mode, "fail"));
+            }
+            assertEquals(Verdict.ACCEPT, getVerdict(curCommand, isError, VerdictMode.EXIT_CODE, "ok"));
+            assertEquals(Verdict.ACCEPT, getVerdict(curCommand, isError, VerdictMode.EXIT_CODE, "bad"));
+            assertEquals(Verdict.REJECT, getVerdict(curCommand, isError, VerdictMode.EXIT_CODE, "fail"));
+        }
+        // whitespace output does not reject
+        assertEquals(Verdict.ACCEPT, getVerdict("printf ' \\n\\t'", false, VerdictMode.STREAMING, "ok"));
+        // streaming decides on the first output, without waiting for the command to exit
+        long time = System.currentTimeMillis();
+        assertEquals(Verdict.REJECT, getVerdict("echo bad; sleep 60", false, VerdictMode.STREAMING, "ok"));
+        assertTrue(System.currentTimeMillis() - time < 10000);
+    }
+
+    @Test
+    public void testVerdictModeSupport() {
+        // an oracle that only returns output cannot decide verdicts from exit codes
+        boolean isRejected = false;
+        try {
+            new ExecuteDiscriminativeOracle(query -> "", VerdictMode.EXIT_CODE);
+        } catch (IllegalArgumentException e) {
+            isRejected = true;
+        }
+        assertTrue(isRejected);
+        new ExecuteDiscriminativeOracle(query -> "", VerdictMode.BUFFERED);
+    }
+
+    @Test
+    public void testSlots() {
+        // The command copies its query to a scratch file next to it, waits, and reports a clash if
+        // another query overwrote the copy in the meantime. It rejects queries containing "bad",
+        // and leaves a nested log file behind.
+        List<String> filenames = Collections.synchronizedList(new ArrayList<>());
+        CommandFactory factory = (filename, auxFilename, exePath) -> {
+            filenames.add(filename);
+            String directory = new File(filename).getParent();
+            return "cp " + filename + " " + directory + "/scratch; sleep 0.3; "
+                    + "cmp -s " + filename + " " + directory + "/scratch || echo clash; "
+                    + "grep -q bad " + directory + "/scratch && echo bad; "
+                    + "mkdir -p " + directory + "/out; touch " + directory + "/out/log";
+        };
+        List<String> queries = new ArrayList<>();
+        BitSet expected = new BitSet();
+        for (int i = 0; i < 8; i++) {
+            queries.add((i % 2 == 0 ? "good" : "bad") + i);
+            expected.set(i, i % 2 == 0);
+        }
+        PooledShellOracle pool = new PooledShellOracle(4, "query.txt", "aux.txt", factory, "", false, 10000);
+        try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(new ExecuteDiscriminativeOracle(pool), 8)) {
+            assertEquals(expected, oracle.testAll(queries));
+        }
+        Set<String> directories = new HashSet<>();
+        for (String filename : filenames) {
+            directories.add(new File(filename).getParent());
+        }
+        assertEquals(4, directories.size());
+        for (String directory : directories) {
+            assertTrue(new File(directory, "out/log").exists());
+            // the query and aux files are deleted after each query
+            assertFalse(new File(directory, "query.txt").exists());
+        }
+        pool.close();
+        for (String directory : directories) {
+            assertFalse(new File(directory).exists());
+        }
+    }
+}
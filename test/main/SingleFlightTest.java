@@ -0,0 +1,110 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package main;
+
+import glade.util.OracleUtils;
+import glade.util.OracleUtils.CachedDiscriminativeOracle;
+import glade.util.OracleUtils.ConcurrentDiscriminativeOracle;
+import glade.util.OracleUtils.SingleFlightDiscriminativeOracle;
+import glade.util.ProfileUtils.ProfiledDiscriminativeOracle;
+import main.CachedOracleTest.BatchOracle;
+import main.ProcessOracleTest.ParensOracle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+    private static final int NUM_THREADS = 8;
+
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        SingleFlightDiscriminativeOracle[] singleFlight = new SingleFlightDiscriminativeOracle[1];
+        // the first execution is held until every other caller is waiting on it
+        singleFlight[0] = new SingleFlightDiscriminativeOracle(query -> {
+            runs.incrementAndGet();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (singleFlight[0].getCoalesced() < NUM_THREADS - 1 && System.currentTimeMillis() < deadline) {
+                Thread.onSpinWait();
+            }
+            return new ParensOracle().test(query);
+        });
+        CachedDiscriminativeOracle oracle = new CachedDiscriminativeOracle(singleFlight[0]);
+        AtomicInteger accepts = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                if (oracle.test("([])")) {
+                    accepts.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1, singleFlight[0].getExecutions());
+        assertEquals(NUM_THREADS - 1, singleFlight[0].getCoalesced());
+        assertEquals(NUM_THREADS, accepts.get());
+
+        // the completed result is reused by the cache, not by the single-flight oracle
+        assertTrue(oracle.test("([])"));
+        assertEquals(1, oracle.getHits());
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testFind() {
+        ProfiledDiscriminativeOracle profiled = new ProfiledDiscriminativeOracle(new ParensOracle());
+        SingleFlightDiscriminativeOracle singleFlight = new SingleFlightDiscriminativeOracle(profiled);
+        CachedDiscriminativeOracle cached = new CachedDiscriminativeOracle(singleFlight);
+        try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(cached, 2)) {
+            assertSame(oracle, OracleUtils.find(oracle, ConcurrentDiscriminativeOracle.class).getT());
+            assertSame(cached, OracleUtils.find(oracle, CachedDiscriminativeOracle.class).getT());
+            assertSame(singleFlight, OracleUtils.find(oracle, SingleFlightDiscriminativeOracle.class).getT());
+            assertSame(profiled, OracleUtils.find(oracle, ProfiledDiscriminativeOracle.class).getT());
+            assertFalse(OracleUtils.find(singleFlight, CachedDiscriminativeOracle.class).hasT());
+            Predicate<String> target = profiled.getOracle();
+            assertFalse(OracleUtils.find(target, ProfiledDiscriminativeOracle.class).hasT());
+        }
+    }
+
+    @Test
+    public void testBatch() {
+        BatchOracle target = new BatchOracle();
+        SingleFlightDiscriminativeOracle oracle = new SingleFlightDiscriminativeOracle(target);
+        // a query repeated in the batch is executed once
+        BitSet results = oracle.testAll(List.of("a", "z", "a", "t"));
+        assertEquals(2, results.cardinality());
+        assertTrue(results.get(0));
+        assertTrue(results.get(2));
+        assertEquals(List.of(List.of("a", "z", "t")), target.batches);
+        assertEquals(3, oracle.getExecutions());
+        assertFalse(oracle.testAllPass(List.of("a", "z", "b")));
+        assertEquals(List.of(List.of("a", "z", "t"), List.of("a", "z", "b")), target.batches);
+    }
+}
@@ -0,0 +1,181 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.util.OracleUtils;
+import glade.util.OracleUtils.SegmentedQuery;
+import glade.util.SocketUtils.OracleServer;
+import glade.util.SocketUtils.SocketDiscriminativeOracle;
+import main.ProcessOracleTest.ParensOracle;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SocketOracleTest {
+    @Test
+    public void testPipelined() throws IOException {
+        try (OracleServer server = new OracleServer(new ParensOracle());
+             SocketDiscriminativeOracle oracle = new SocketDiscriminativeOracle(server.getAddress(), 2)) {
+            assertTrue(oracle.test("([]{})"));
+            assertFalse(oracle.test("([)]"));
+            List<String> queries = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                queries.add(i % 3 == 0 ? "(" : "()");
+            }
+            assertEquals(2000, oracle.testAll(queries).cardinality());
+            Grammar grammar = GrammarSynthesis.learn(List.of("{([][])([][])}"), oracle);
+            assertEquals(1, grammar.node.getChildren().size());
+        }
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        try (OracleServer server = new OracleServer(new ParensOracle());
+             SocketDiscriminativeOracle oracle = new SocketDiscriminativeOracle(server.getAddress(), 1)) {
+            assertTrue(oracle.test(SegmentedQuery.of("([", "", "]{", "})")));
+            List<SegmentedQuery> queries = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                queries.add(i % 3 == 0 ? SegmentedQuery.of("(", "") : SegmentedQuery.of("(", "", ")"));
+            }
+            assertEquals(oracle.testAll(OracleUtils.toStrings(queries)), oracle.testAllSegments(queries));
+            assertFalse(oracle.testAllPassSegments(queries));
+        }
+    }
+
+    @Test
+    public void testReconnect() throws IOException {
+        Path directory = Files.createTempDirectory("glade");
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(directory.resolve("oracle.sock"));
+        try (SocketDiscriminativeOracle oracle = new SocketDiscriminativeOracle(address, 1)) {
+            OracleServer server = new OracleServer(new ParensOracle(), address);
+            try {
+                assertTrue(oracle.test("{}"));
+            } finally {
+                server.close();
+            }
+            server = new OracleServer(new ParensOracle(), address);
+            try {
+                assertFalse(oracle.test("{"));
+                assertEquals(2, oracle.getNumConnects());
+            } finally {
+                server.close();
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testServerDeath() throws Exception {
+        Path directory = Files.createTempDirectory("glade");
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(directory.resolve("oracle.sock"));
+        AtomicInteger numReceived = new AtomicInteger();
+        CountDownLatch hold = new CountDownLatch(1);
+        Predicate<String> parens = new ParensOracle();
+        Predicate<String> slow = query -> {
+            numReceived.incrementAndGet();
+            try {
+                hold.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return parens.test(query);
+        };
+        try (SocketDiscriminativeOracle oracle = new SocketDiscriminativeOracle(address, 2)) {
+            // two callers hold the connections and four more wait for them when the server dies
+            List<Thread> callers = new ArrayList<>();
+            OracleServer server = new OracleServer(slow, address);
+            try {
+                for (int i = 0; i < 6; i++) {
+                    Thread caller = new Thread(() -> {
+                        try {
+                            oracle.test("()");
+                        } catch (RuntimeException e) {
+                            // expected once the server is gone
+                        }
+                    });
+                    caller.start();
+                    callers.add(caller);
+                }
+                while (numReceived.get() < 2) {
+                    Thread.sleep(10);
+                }
+                Thread.sleep(200);
+                assertEquals(2, numReceived.get());
+            } finally {
+                server.close();
+            }
+            hold.countDown();
+            for (Thread caller : callers) {
+                caller.join(10000);
+                assertFalse(caller.isAlive());
+            }
+            server = new OracleServer(parens, address);
+            try {
+                assertTrue(oracle.test("{}"));
+                assertFalse(oracle.test("{"));
+            } finally {
+                server.close();
+            }
+        } finally {
+            Files.deleteIfExists(directory.resolve("oracle.sock"));
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testHungServer() throws IOException {
+        CountDownLatch hold = new CountDownLatch(1);
+        Predicate<String> hung = query -> {
+            try {
+                hold.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        };
+        try (OracleServer server = new OracleServer(hung);
+             SocketDiscriminativeOracle oracle = new SocketDiscriminativeOracle(server.getAddress(), 1, 200)) {
+            long start = System.currentTimeMillis();
+            boolean isTimedOut = false;
+            try {
+                oracle.test("()");
+            } catch (RuntimeException e) {
+                isTimedOut = e.getCause() instanceof SocketTimeoutException;
+            }
+            assertTrue(isTimedOut);
+            // the batch was retried once on a new connection before giving up
+            assertEquals(2, oracle.getNumConnects());
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            hold.countDown();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package main;
+
+import glade.grammar.GrammarUtils.Grammar;
+import glade.grammar.GrammarUtils.Node;
+import glade.grammar.synthesize.GrammarSynthesis;
+import glade.grammar.synthesize.SynthesisBudget;
+import glade.grammar.synthesize.SynthesisBudget.Step;
+import glade.grammar.synthesize.SynthesisParallelism;
+import glade.util.OracleUtils.ConcurrentDiscriminativeOracle;
+import main.ProcessOracleTest.ParensOracle;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SynthesisBudgetTest {
+    private static final List<String> EXAMPLES = List.of("{([][])([][])}{[()()][()()]}", "[()]");
+
+    @Test
+    public void testExhausted() {
+        SynthesisBudget budget = new SynthesisBudget(0, -1);
+        Grammar grammar = GrammarSynthesis.learn(EXAMPLES, new ParensOracle(), budget);
+        assertTrue(budget.isExhausted());
+        assertEquals(0, budget.getQueries());
+        assertEquals(0.0, budget.getCoverage(Step.SEARCH), 0.0);
+        // nothing was explored, so each seed is kept as a single constant
+        for (int i = 0; i < EXAMPLES.size(); i++) {
+            Node root = grammar.node.getChildren().get(i);
+            assertEquals(EXAMPLES.get(i), root.getData().example);
+            assertTrue(root.getChildren().isEmpty());
+        }
+    }
+
+    @Test
+    public void testWrapped() {
+        // the budget is found inside the concurrent oracle used for batching
+        SynthesisBudget budget = new SynthesisBudget(0, -1);
+        try (ConcurrentDiscriminativeOracle oracle = new ConcurrentDiscriminativeOracle(budget.getOracle(new ParensOracle()), 4)) {
+            Grammar grammar = GrammarSynthesis.learn(EXAMPLES, oracle, new SynthesisParallelism(4, 1));
+            assertTrue(budget.isExhausted());
+            assertEquals(0.0, budget.getCoverage(Step.SEARCH), 0.0);
+            for (int i = 0; i < EXAMPLES.size(); i++) {
+                assertTrue(grammar.node.getChildren().get(i).getChildren().isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testUnbounded() {
+        SynthesisBudget budget = new SynthesisBudget(-1, -1);
+        GrammarSynthesis.learn(EXAMPLES, new ParensOracle(), budget);
+        assertFalse(budget.isExhausted());
+        for (Step step : Step.values()) {
+            assertEquals(1.0, budget.getCoverage(step), 0.0);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright 2015-2016 Stanford University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package main;
+
+import glade.util.OracleUtils.CachedDiscriminativeOracle;
+import glade.util.OracleUtils.OracleStore;
+import glade.util.OracleUtils.SingleFlightDiscriminativeOracle;
+import glade.util.OracleUtils.StoredDiscriminativeOracle;
+import glade.util.OracleUtils.Verdict;
+import glade.util.ProfileUtils.ProfiledDiscriminativeOracle;
+import glade.util.ShellUtils;
+import glade.util.ShellUtils.AdaptiveTimeoutPolicy;
+import glade.util.ShellUtils.ExecDiscriminativeOracle;
+import glade.util.ShellUtils.FixedTimeoutPolicy;
+import glade.util.ShellUtils.OutputVerdict;
+import glade.util.ShellUtils.QueryInput;
+import glade.util.ShellUtils.ShellResult;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeoutTest {
+    // accepts every query, but takes a minute to answer "slow"
+    private static final List<String> SLOW_COMMAND = List.of("/bin/sh", "-c", "read query; [ \"$query\" = slow ] && sleep 60; exit 0");
+
+    private static void assertDead(long pid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            Optional<ProcessHandle> process = ProcessHandle.of(pid);
+            if (!process.isPresent() || !process.get().isAlive()) {
+                return;
+            }
+            assertTrue("Process still running: " + pid, System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private static long readPid(File file) throws IOException {
+        return Long.parseLong(new String(Files.readAllBytes(file.toPath())).trim());
+    }
+
+    @Test
+    public void testDeadline() {
+        try (ExecDiscriminativeOracle oracle = new ExecDiscriminativeOracle(List.of("sleep", "0.2"), QueryInput.STDIN, OutputVerdict.EXIT_CODE, 5000)) {
+            assertEquals(Verdict.ACCEPT, oracle.getVerdict(""));
+        }
+        try (ExecDiscriminativeOracle oracle = new ExecDiscriminativeOracle(List.of("sleep", "60"), QueryInput.STDIN, OutputVerdict.EXIT_CODE, 300)) {
+            long time = System.currentTimeMillis();
+            assertEquals(Verdict.TIMEOUT, oracle.getVerdict(""));
+            assertTrue(System.currentTimeMillis() - time < 5000);
+        }
+        ShellResult result = ShellUtils.executeForResult("echo done", false, 5000);
+        assertFalse(result.isTimeout);
+        assertEquals("done", result.output.trim());
+        long time = System.currentTimeMillis();
+        assertTrue(ShellUtils.executeForResult("sleep 60", false, 300).isTimeout);
+        assertTrue(System.currentTimeMillis() - time < 5000);
+    }
+
+    @Test
+    public void testProcessTree() throws IOException, InterruptedException {
+        // the target leaves a grandchild running, which must be killed with it
+        File file = File.createTempFile("glade-pid", ".txt");
+        try {
+            try (ExecDiscriminativeOracle oracle = new ExecDiscriminativeOracle(List.of("/bin/sh", "-c", "sleep 60 & echo $! > " + file + "; wait"), QueryInput.STDIN, OutputVerdict.EXIT_CODE, 500)) {
+                assertEquals(Verdict.TIMEOUT, oracle.getVerdict(""));
+            }
+            assertDead(readPid(file));
+            assertTrue(ShellUtils.executeForResult("sleep 60 & echo $! > " + file + "; wait", false, 500).isTimeout);
+            assertDead(readPid(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testAdaptiveRecheck() {
+        // accepts every query, but takes two seconds to answer "slow"
+        List<String> command = List.of("/bin/sh", "-c", "read query; [ \"$query\" = slow ] && sleep 2; exit 0");
+        AdaptiveTimeoutPolicy timeout = new AdaptiveTimeoutPolicy(20, 0.99, 2.0, 200, 30000);
+        try (ExecDiscriminativeOracle oracle = new ExecDiscriminativeOracle(command, QueryInput.STDIN, OutputVerdict.EXIT_CODE, timeout)) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(Verdict.ACCEPT, oracle.getVerdict("fast"));
+            }
+            assertTrue(timeout.getTimeoutMillis() < 2000);
+            assertEquals(0, timeout.getNumRechecks());
+            // the slow query misses the learned deadline, but is accepted under the relaxed one
+            assertEquals(Verdict.ACCEPT, oracle.getVerdict("slow"));
+            assertEquals(1, timeout.getNumRechecks());
+            assertEquals(0, timeout.getNumTimeouts());
+        }
+        // a query that misses the relaxed deadline too is a timeout
+        assertTrue(timeout.execute(millis -> true, isTimeout -> isTimeout));
+        assertEquals(2, timeout.getNumRechecks());
+        assertEquals(1, timeout.getNumTimeouts());
+        // a fixed deadline is never rechecked
+        FixedTimeoutPolicy fixed = new FixedTimeoutPolicy(300);
+        assertTrue(fixed.execute(millis -> true, isTimeout -> isTimeout));
+        assertEquals(0, fixed.getNumRechecks());
+        assertEquals(1, fixed.getNumTimeouts());
+    }
+
+    @Test
+    public void testTimeoutNotRemembered() throws IOException {
+        File file = File.createTempFile("glade-store", ".bin");
+        try (ExecDiscriminativeOracle target = new ExecDiscriminativeOracle(SLOW_COMMAND, QueryInput.STDIN, OutputVerdict.EXIT_CODE, 300);
+             OracleStore store = new OracleStore(file, "slow")) {
+            CachedDiscriminativeOracle oracle = new CachedDiscriminativeOracle(new SingleFlightDiscriminativeOracle(new StoredDiscriminativeOracle(new ProfiledDiscriminativeOracle(target), store)));
+            assertEquals(Verdict.TIMEOUT, oracle.getVerdict("slow"));
+            assertFalse(oracle.test("slow"));
+            assertEquals(Verdict.ACCEPT, oracle.getVerdict("fast"));
+            assertTrue(oracle.test("fast"));
+            // only the accepted query is remembered, by both the cache and the store
+            assertEquals(1, oracle.size());
+            assertEquals(1, oracle.getHits());
+            assertEquals(3, oracle.getMisses());
+            assertEquals(1, store.size());
+            assertEquals(2, target.getTimeoutPolicy().getNumTimeouts());
+        } finally {
+            file.delete();
+        }
+    }
+}